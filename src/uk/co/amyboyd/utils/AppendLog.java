@@ -0,0 +1,216 @@
+package uk.co.amyboyd.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A file that records are appended to durably: each append returns only
+ * once the record is on disk.
+ *
+ * <p>Appends from many threads share fsyncs (group commit). While one
+ * thread writes and forces a batch of records, the others add theirs to
+ * the next batch, which the first of them to find the disk free then
+ * writes and forces for all of them. So the number of fsyncs depends on
+ * how fast the disk is, not on how many records there are.
+ *
+ * <p>If a write or fsync fails, whether earlier records reached the disk
+ * is unknown, so every append after that fails too.
+ */
+public class AppendLog implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    final private FileChannel channel;
+
+    final private CharsetEncoder encoder;
+
+    final private ReentrantLock lock = new ReentrantLock();
+
+    final private Condition synced = lock.newCondition();
+
+    final private LongAdder syncCount = new LongAdder();
+
+    /**
+     * Records waiting for the next batch.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * The buffer of the batch being written, or the one to use next.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    private long appended = 0;
+
+    private long durable = 0;
+
+    private boolean syncing = false;
+
+    private IOException failure;
+
+    private boolean closed = false;
+
+    /**
+     * Open a log, creating it if it does not exist.
+     *
+     * @param charset For text records.
+     * @throws IOException if the file cannot be opened for writing.
+     */
+    public AppendLog(final File file, final Charset charset) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Append text, encoded with the log's charset, and wait until it is on
+     * disk. Nothing is added between records; end them with a newline if
+     * they are lines.
+     *
+     * @throws IOException if the log could not be written, now or before.
+     */
+    public void append(final CharSequence record) throws IOException {
+        lock.lock();
+        try {
+            ensureWritable();
+
+            final CharBuffer in = CharBuffer.wrap(record);
+            encoder.reset();
+            while (encoder.encode(in, pending, true).isOverflow()) {
+                pending = grow(pending);
+            }
+            while (encoder.flush(pending).isOverflow()) {
+                pending = grow(pending);
+            }
+
+            commit(++appended);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append bytes, and wait until they are on disk.
+     *
+     * @throws IOException if the log could not be written, now or before.
+     */
+    public void append(final byte[] record) throws IOException {
+        lock.lock();
+        try {
+            ensureWritable();
+
+            while (pending.remaining() < record.length) {
+                pending = grow(pending);
+            }
+            pending.put(record);
+
+            commit(++appended);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of fsyncs so far. Less than the number of appends
+     *  when they were batched.
+     */
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Wait for any batch being written, and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the record with this sequence number is on disk, writing
+     * the batch with it if no one else is writing. Called with the lock held.
+     */
+    private void commit(final long sequence) throws IOException {
+        while (durable < sequence) {
+            if (failure != null) {
+                throw new IOException("Log could not be written", failure);
+            }
+
+            if (syncing) {
+                synced.awaitUninterruptibly();
+                continue;
+            }
+
+            // Lead this batch: take everything appended so far, and let the
+            // next batch build up in the other buffer while this is written.
+            syncing = true;
+            final ByteBuffer batch = pending;
+            final long batchEnd = appended;
+            pending = spare;
+            IOException error = null;
+
+            lock.unlock();
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+                syncCount.increment();
+            } catch (final IOException ex) {
+                error = ex;
+            } catch (final RuntimeException ex) {
+                error = new IOException(ex);
+            } finally {
+                lock.lock();
+            }
+
+            batch.clear();
+            spare = batch;
+            syncing = false;
+            if (error == null) {
+                durable = batchEnd;
+            } else {
+                failure = error;
+            }
+            synced.signalAll();
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed");
+        }
+        if (failure != null) {
+            throw new IOException("Log could not be written", failure);
+        }
+    }
+
+    private static ByteBuffer grow(final ByteBuffer buffer) {
+        final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
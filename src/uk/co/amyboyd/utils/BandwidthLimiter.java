@@ -0,0 +1,49 @@
+package uk.co.amyboyd.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A budget of bytes per second shared by many transfers. Each transfer
+ * reports what it has just read and sleeps until the budget allows it.
+ * Up to 100 ms of unused budget may be spent in a burst.
+ */
+final class BandwidthLimiter {
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    final private long bytesPerSecond;
+
+    final private double nanosPerByte;
+
+    private long nextFreeNanos = System.nanoTime();
+
+    BandwidthLimiter(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth must be positive: " + bytesPerSecond);
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Spend bytes of the budget, sleeping until it is available.
+     */
+    void acquire(final int bytes) throws InterruptedException {
+        final long wait;
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            nextFreeNanos = Math.max(nextFreeNanos, now - MAX_BURST_NANOS);
+            wait = nextFreeNanos - now;
+            nextFreeNanos += (long) (bytes * nanosPerByte);
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
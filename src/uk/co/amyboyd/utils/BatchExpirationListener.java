@@ -0,0 +1,18 @@
+package uk.co.amyboyd.utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A listener that is told about removed entries in batches.
+ *
+ * @see ExpiringMap#addBatchExpirationListener(BatchExpirationListener)
+ * @see ExpiringMap#setAsyncListenerDispatch(java.util.concurrent.Executor, int, int)
+ */
+public interface BatchExpirationListener<K, V> {
+    /**
+     * @param entries The removed keys and values, in the order they were removed.
+     * @param cause Why every entry in this batch was removed.
+     */
+    void expired(List<Map.Entry<K, V>> entries, RemovalCause cause);
+}
@@ -0,0 +1,417 @@
+package uk.co.amyboyd.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads many URLs to files at once, on virtual threads (on JVMs without
+ * virtual threads, on daemon platform threads).
+ *
+ * <p>Each host has a limited number of connections, and there is a limit on
+ * connections overall. All downloads can share a bandwidth budget. Failed
+ * downloads are retried with exponential backoff if the failure might be
+ * temporary: an IO error, or HTTP 408, 429 or 5xx. A Retry-After header is
+ * honoured.
+ *
+ * <p>Each file is written to "name.part" and renamed when complete, so a
+ * failed download never leaves a partial file under the final name.
+ *
+ * <p>Settings may be changed between calls to {@link #download(Map)}.
+ */
+public class BulkDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 60000;
+
+    private volatile int maxConnections = 64;
+
+    private volatile int maxConnectionsPerHost = 4;
+
+    private volatile int maxRetries = 3;
+
+    private volatile long retryBackoffMillis = 500;
+
+    private volatile int connectTimeoutMillis = 10000;
+
+    private volatile int readTimeoutMillis = 30000;
+
+    private volatile BandwidthLimiter bandwidth;
+
+    /**
+     * One URL to download, and what happened to it.
+     */
+    private static final class Task {
+        final URL url;
+
+        final File file;
+
+        /**
+         * The HTTP status of the last attempt, or -1.
+         */
+        int statusCode = -1;
+
+        volatile DownloadResult result;
+
+        Task(final URL url, final File file) {
+            this.url = url;
+            this.file = file;
+        }
+    }
+
+    /**
+     * An HTTP response that was not a success.
+     */
+    private static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        final long retryAfterMillis;
+
+        HttpStatusException(final URL url, final int statusCode, final long retryAfterMillis) {
+            super("HTTP " + statusCode + " from " + url);
+            this.statusCode = statusCode;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * @return Whether trying again may help. Never for a redirect.
+         */
+        boolean isTemporary() {
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+    }
+
+    /**
+     * Download every URL to its file, and wait for them all to finish.
+     * Existing files are overwritten.
+     *
+     * @param downloads Each URL, and the file to save it as.
+     * @return What happened to each URL, in the order of the map.
+     * @throws InterruptedException if interrupted while waiting. The
+     *  downloads in progress are cancelled.
+     */
+    public List<DownloadResult> download(final Map<URL, File> downloads) throws InterruptedException {
+        final List<Task> tasks = new ArrayList<Task>(downloads.size());
+        final Map<String, Queue<Task>> byHost = new LinkedHashMap<String, Queue<Task>>();
+
+        for (final Map.Entry<URL, File> entry: downloads.entrySet()) {
+            final Task task = new Task(entry.getKey(), entry.getValue());
+            tasks.add(task);
+            byHost.computeIfAbsent(hostOf(task.url), k -> new ConcurrentLinkedQueue<Task>()).add(task);
+        }
+
+        // Each host gets as many workers as it may have connections, and
+        // the workers share the connections overall.
+        final Semaphore connections = new Semaphore(maxConnections);
+        final int perHost = maxConnectionsPerHost;
+        final ExecutorService executor = VirtualThreads.newExecutor("BulkDownloader");
+
+        try {
+            final List<Future<?>> workers = new ArrayList<Future<?>>();
+
+            for (final Queue<Task> queue: byHost.values()) {
+                final int count = Math.min(perHost, queue.size());
+                for (int i = 0; i < count; i++) {
+                    workers.add(executor.submit(() -> work(queue, connections)));
+                }
+            }
+
+            // Wait for every worker, so that one failing does not cancel the
+            // others; only an interrupt does that.
+            for (final Future<?> worker: workers) {
+                try {
+                    worker.get();
+                } catch (final ExecutionException ex) {
+                    // Workers catch everything they expect, so this is a bug.
+                    Logger.getLogger(BulkDownloader.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final List<DownloadResult> results = new ArrayList<DownloadResult>(tasks.size());
+        for (final Task task: tasks) {
+            DownloadResult result = task.result;
+            if (result == null) {
+                result = new DownloadResult(task.url, task.file, -1, 0, 0, 0,
+                        new InterruptedIOException("Cancelled"));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private void work(final Queue<Task> queue, final Semaphore connections) {
+        Task task;
+        while ((task = queue.poll()) != null) {
+            try {
+                task.result = downloadWithRetries(task, connections);
+            } catch (final InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private DownloadResult downloadWithRetries(final Task task, final Semaphore connections)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        int attempts = 0;
+
+        while (true) {
+            attempts++;
+            task.statusCode = -1;
+            IOException error;
+            long retryAfterMillis = 0;
+
+            connections.acquire();
+            try {
+                final long bytes = downloadOnce(task);
+                return new DownloadResult(task.url, task.file, task.statusCode, bytes, attempts,
+                        System.nanoTime() - start, null);
+            } catch (final HttpStatusException ex) {
+                error = ex;
+                retryAfterMillis = ex.retryAfterMillis;
+            } catch (final InterruptedIOException ex) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                error = ex;
+            } catch (final IOException ex) {
+                error = ex;
+            } finally {
+                connections.release();
+            }
+
+            final boolean temporary = error instanceof HttpStatusException
+                    ? ((HttpStatusException) error).isTemporary()
+                    : !(error instanceof FileNotFoundException);
+
+            if (!temporary || attempts > maxRetries) {
+                return new DownloadResult(task.url, task.file, task.statusCode, 0, attempts,
+                        System.nanoTime() - start, error);
+            }
+
+            long backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, retryBackoffMillis << Math.min(attempts - 1, 20));
+            backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            Thread.sleep(Math.max(backoff, retryAfterMillis));
+        }
+    }
+
+    /**
+     * @return The number of bytes saved.
+     */
+    private long downloadOnce(final Task task) throws IOException {
+        final URL url = task.url;
+        final File file = task.file;
+        final URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(connectTimeoutMillis);
+        conn.setReadTimeout(readTimeoutMillis);
+
+        if (conn instanceof HttpURLConnection) {
+            final HttpURLConnection http = (HttpURLConnection) conn;
+            http.setInstanceFollowRedirects(true);
+
+            final int code = http.getResponseCode();
+            task.statusCode = code;
+            // Redirects to another protocol are not followed, and a 304
+            // has no content to save, so only 2xx is a success.
+            if (code < 200 || code >= 300) {
+                discardBody(http, code);
+                throw new HttpStatusException(url, code, retryAfterMillis(http));
+            }
+        }
+
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        final File part = new File(file.getPath() + ".part");
+        final BandwidthLimiter limiter = bandwidth;
+        long bytes = 0;
+
+        try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(part)) {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+                bytes += len;
+
+                if (limiter != null) {
+                    limiter.acquire(len);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            part.delete();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted: " + url);
+        } catch (final IOException ex) {
+            part.delete();
+            throw ex;
+        }
+
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return bytes;
+    }
+
+    /**
+     * Read the rest of an unwanted response, so that the connection can be
+     * reused.
+     */
+    private static void discardBody(final HttpURLConnection http, final int code) {
+        try (InputStream body = code >= 400 ? http.getErrorStream() : http.getInputStream()) {
+            if (body != null) {
+                final byte[] buf = new byte[4096];
+                while (body.read(buf) != -1) {
+                    // Discard.
+                }
+            }
+        } catch (final IOException ex) {
+            // The connection will not be reused.
+        }
+    }
+
+    /**
+     * @return Milliseconds from a Retry-After header in seconds, or 0.
+     */
+    private static long retryAfterMillis(final HttpURLConnection http) {
+        final String value = http.getHeaderField("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.min(MAX_RETRY_BACKOFF_MILLIS, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (final NumberFormatException ex) {
+            // An HTTP date; use the normal backoff.
+            return 0;
+        }
+    }
+
+    private static String hostOf(final URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections Downloads in progress at once, over all hosts.
+     */
+    public void setMaxConnections(final int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Maximum connections must be positive: " + maxConnections);
+        }
+
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @param maxConnectionsPerHost Downloads in progress at once from each
+     *  host (and port).
+     */
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("Maximum connections per host must be positive: "
+                    + maxConnectionsPerHost);
+        }
+
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @return The bandwidth budget, or 0 if there is none.
+     */
+    public long getBytesPerSecond() {
+        final BandwidthLimiter limiter = bandwidth;
+        return limiter == null ? 0 : limiter.getBytesPerSecond();
+    }
+
+    /**
+     * @param bytesPerSecond The total rate of all downloads, or 0 for no limit.
+     */
+    public void setBytesPerSecond(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Bandwidth cannot be negative: " + bytesPerSecond);
+        }
+
+        this.bandwidth = bytesPerSecond == 0 ? null : new BandwidthLimiter(bytesPerSecond);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries Times to retry a download that failed with what may
+     *  be a temporary error, so up to maxRetries + 1 attempts.
+     */
+    public void setMaxRetries(final int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Retries cannot be negative: " + maxRetries);
+        }
+
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryBackoff(final TimeUnit unit) {
+        return unit.convert(retryBackoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param backoff The wait before the first retry. It doubles for each
+     *  retry after, up to a minute, plus up to half again at random.
+     */
+    public void setRetryBackoff(final long backoff, final TimeUnit unit) {
+        if (backoff < 0) {
+            throw new IllegalArgumentException("Backoff cannot be negative: " + backoff);
+        }
+
+        this.retryBackoffMillis = unit.toMillis(backoff);
+    }
+
+    /**
+     * @param connect Time allowed to connect.
+     * @param read Time allowed to wait for each read.
+     */
+    public void setTimeouts(final long connect, final long read, final TimeUnit unit) {
+        if (connect < 0 || read < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative.");
+        }
+
+        this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(connect));
+        this.readTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(read));
+    }
+}
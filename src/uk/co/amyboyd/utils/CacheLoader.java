@@ -0,0 +1,24 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * Computes the value for a key of a {@link LoadingExpiringMap}.
+ */
+public interface CacheLoader<K, V> {
+    /**
+     * @return The value for the key, or null if there is none.
+     * @throws Exception if the value could not be loaded.
+     */
+    V load(K key) throws Exception;
+
+    /**
+     * Computes a new value for a key that is about to expire. By default
+     * this just calls load(key).
+     *
+     * @param oldValue The value currently in the map.
+     * @return The new value, or null to keep the old value until it expires.
+     * @throws Exception if the value could not be loaded.
+     */
+    default V reload(K key, V oldValue) throws Exception {
+        return load(key);
+    }
+}
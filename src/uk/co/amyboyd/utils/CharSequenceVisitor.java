@@ -0,0 +1,16 @@
+package uk.co.amyboyd.utils;
+
+import java.io.IOException;
+
+/**
+ * Receives the text of a file a chunk at a time.
+ *
+ * @see FileUtils#read(java.io.File, java.nio.charset.CharsetDecoder, CharSequenceVisitor)
+ */
+public interface CharSequenceVisitor {
+    /**
+     * @param chunk The next part of the text. Only valid during the call; copy
+     *  anything that must be kept.
+     */
+    void visit(CharSequence chunk) throws IOException;
+}
@@ -0,0 +1,77 @@
+package uk.co.amyboyd.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A cached wall clock for hot paths that read the time on every call but only
+ * need it to {@link #RESOLUTION_MILLIS}.
+ *
+ * <p>A daemon thread refreshes the cached time. When nothing has read the
+ * clock for about a second, the thread parks until the next read, so an idle
+ * JVM does not pay for it.
+ */
+final class CoarseClock {
+    /**
+     * How often the cached time is refreshed.
+     */
+    static final long RESOLUTION_MILLIS = 10;
+
+    private static final int TICKS_PER_IDLE_CHECK = 100;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    private static volatile boolean idle = false;
+
+    private static final Thread ticker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    }, "CoarseClock");
+
+    static {
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * @return The current time (milliseconds), to within RESOLUTION_MILLIS.
+     */
+    static long currentTimeMillis() {
+        if (idle) {
+            // Refresh before clearing idle, so that no reader that sees it
+            // cleared can read the time from before the ticker parked.
+            final long time = System.currentTimeMillis();
+            now = time;
+            idle = false;
+            LockSupport.unpark(ticker);
+            return time;
+        }
+        return now;
+    }
+
+    private static void tick() {
+        while (true) {
+            for (int i = 0; i < TICKS_PER_IDLE_CHECK; i++) {
+                // An unpark from a reader only makes this tick early.
+                LockSupport.parkNanos(CoarseClock.class, TimeUnit.MILLISECONDS.toNanos(RESOLUTION_MILLIS));
+                now = System.currentTimeMillis();
+            }
+
+            if (!idle) {
+                // Readers clear this; if it is still set next time, nothing has read the clock.
+                idle = true;
+                continue;
+            }
+
+            while (idle) {
+                LockSupport.park(CoarseClock.class);
+            }
+            now = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package uk.co.amyboyd.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Items ordered by deadline, used by {@link ExpiringMap} so that its expirer
+ * can sleep until exactly the next deadline.
+ *
+ * <p>{@link #schedule(Object)} and {@link #cancel(Entry)} may be called from
+ * any thread and never block. When an item becomes the earliest in the queue
+ * the wake-up task is run, so a sleeping expirer can sleep for less time.
+ * Items that never expire are not kept.
+ *
+ * <p>As with {@link TimingWheel}, an item may be returned before its deadline
+ * if its deadline has moved since it was scheduled, so callers must re-check
+ * each item and schedule it again if it is not yet due.
+ */
+final class DeadlineQueue<T> {
+    private static final Comparator<Entry<?>> ORDER = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(final Entry<?> a, final Entry<?> b) {
+            if (a.deadline != b.deadline) {
+                return a.deadline < b.deadline ? -1 : 1;
+            }
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /**
+     * An item's place in the queue.
+     */
+    static final class Entry<T> {
+        final long deadline;
+
+        final long sequence;
+
+        final T item;
+
+        Entry(final long deadline, final long sequence, final T item) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    final private ToLongFunction<T> deadlineFunction;
+
+    final private ConcurrentSkipListSet<Entry<T>> entries =
+            new ConcurrentSkipListSet<Entry<T>>(ORDER);
+
+    final private AtomicLong sequence = new AtomicLong();
+
+    private volatile Runnable wakeup;
+
+    /**
+     * @param deadlineFunction Returns the time (milliseconds) at which an item is due.
+     *  Long.MAX_VALUE means never.
+     */
+    DeadlineQueue(final ToLongFunction<T> deadlineFunction) {
+        this.deadlineFunction = deadlineFunction;
+    }
+
+    /**
+     * Set the task run when a scheduled item becomes the earliest, or null.
+     * It runs on the scheduling thread, so it must be quick.
+     */
+    void setWakeup(final Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Add an item, unless it never expires.
+     *
+     * @return The item's entry, to cancel it with; or null if it was not
+     *  added.
+     */
+    Entry<T> schedule(final T item) {
+        final long deadline = deadlineFunction.applyAsLong(item);
+        if (deadline == Long.MAX_VALUE) {
+            return null;
+        }
+
+        final Entry<T> entry = new Entry<T>(deadline, sequence.getAndIncrement(), item);
+        entries.add(entry);
+
+        if (first() == entry) {
+            final Runnable w = wakeup;
+            if (w != null) {
+                w.run();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Take an item out of the queue, e.g. because it has been replaced.
+     */
+    void cancel(final Entry<T> entry) {
+        entries.remove(entry);
+    }
+
+    /**
+     * Remove the items whose deadline is at or before the given time. Only
+     * one thread may call this at a time.
+     *
+     * @return The items that are due, earliest first.
+     */
+    List<T> pollDue(final long timeNow) {
+        final List<T> due = new ArrayList<T>();
+
+        Entry<T> entry;
+        while ((entry = first()) != null && entry.deadline <= timeNow) {
+            if (entries.remove(entry)) {
+                due.add(entry.item);
+            }
+        }
+
+        return due;
+    }
+
+    /**
+     * @return The earliest deadline (milliseconds), or Long.MAX_VALUE if the
+     *  queue is empty.
+     */
+    long nextDeadline() {
+        final Entry<T> entry = first();
+        return entry == null ? Long.MAX_VALUE : entry.deadline;
+    }
+
+    /**
+     * Remove every item.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    private Entry<T> first() {
+        // first() throws if another thread empties the set.
+        final Iterator<Entry<T>> it = entries.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+}
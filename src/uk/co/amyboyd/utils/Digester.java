@@ -0,0 +1,123 @@
+package uk.co.amyboyd.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Computes several digests of the same bytes at once, as they pass through
+ * a copy, so that nothing has to be read twice.
+ *
+ * <p>Algorithms are those of {@link MessageDigest}, e.g. "SHA-256" or
+ * "MD5", and "CRC32" and "CRC32C".
+ */
+final class Digester {
+    final private Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+
+    final private Map<String, Checksum> checksums = new LinkedHashMap<String, Checksum>();
+
+    private long bytes = 0;
+
+    /**
+     * @throws IllegalArgumentException if an algorithm is not known.
+     */
+    Digester(final Collection<String> algorithms) {
+        if (algorithms.isEmpty()) {
+            throw new IllegalArgumentException("No digest algorithms given.");
+        }
+
+        for (final String algorithm: algorithms) {
+            final String name = algorithm.toUpperCase(Locale.ROOT);
+
+            if (name.equals("CRC32")) {
+                checksums.put(name, new CRC32());
+            } else if (name.equals("CRC32C")) {
+                checksums.put(name, new CRC32C());
+            } else {
+                try {
+                    digests.put(name, MessageDigest.getInstance(name));
+                } catch (final NoSuchAlgorithmException ex) {
+                    throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Digest the remaining bytes of a buffer. Its position is not changed.
+     */
+    void update(final ByteBuffer buffer) {
+        for (final MessageDigest md: digests.values()) {
+            md.update(buffer.duplicate());
+        }
+        for (final Checksum checksum: checksums.values()) {
+            checksum.update(buffer.duplicate());
+        }
+        bytes += buffer.remaining();
+    }
+
+    void update(final byte[] b, final int off, final int len) {
+        for (final MessageDigest md: digests.values()) {
+            md.update(b, off, len);
+        }
+        for (final Checksum checksum: checksums.values()) {
+            checksum.update(b, off, len);
+        }
+        bytes += len;
+    }
+
+    /**
+     * @return The digests of everything so far. Checksums are given as 4
+     *  bytes, big-endian, as they are usually written in hex.
+     */
+    Digests finish(final long elapsedNanos) {
+        final Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+
+        for (final Map.Entry<String, MessageDigest> entry: digests.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().digest());
+        }
+        for (final Map.Entry<String, Checksum> entry: checksums.entrySet()) {
+            final long value = entry.getValue().getValue();
+            values.put(entry.getKey(), new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+            });
+        }
+
+        return new Digests(values, bytes, elapsedNanos);
+    }
+
+    /**
+     * @return A stream that digests what is written through it to out.
+     */
+    OutputStream wrap(final OutputStream out) {
+        return new Stream(out);
+    }
+
+    private final class Stream extends FilterOutputStream {
+        Stream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            update(new byte[] {(byte) b}, 0, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uk.co.amyboyd.utils;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The digests of the bytes written by a copy or gzip, computed as they were
+ * written.
+ *
+ * @see FileUtils#copyDigesting(java.io.File, java.io.File, String...)
+ * @see FileUtils#gzipDigesting(java.io.File, java.io.File, int, int, String...)
+ */
+public final class Digests {
+    final private Map<String, byte[]> values;
+
+    final private long bytes;
+
+    final private long elapsedNanos;
+
+    Digests(final Map<String, byte[]> values, final long bytes, final long elapsedNanos) {
+        this.values = values;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The algorithms, in upper case, in the order they were asked for.
+     */
+    public Set<String> getAlgorithms() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @return The digest, or null if it was not computed.
+     */
+    public byte[] get(final String algorithm) {
+        final byte[] value = values.get(algorithm.toUpperCase(Locale.ROOT));
+        return value == null ? null : value.clone();
+    }
+
+    /**
+     * @return The digest in lower-case hex, or null if it was not computed.
+     */
+    public String getHex(final String algorithm) {
+        final byte[] value = values.get(algorithm.toUpperCase(Locale.ROOT));
+        return value == null ? null : toHex(value);
+    }
+
+    /**
+     * @return The number of bytes digested.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Check the digests against the expected ones.
+     *
+     * @param expected Each algorithm, and its digest in hex (either case).
+     * @throws IOException if a digest does not match.
+     * @throws IllegalArgumentException if an expected digest was not
+     *  computed, or is not hex.
+     */
+    public void verify(final Map<String, String> expected) throws IOException {
+        for (final Map.Entry<String, String> entry: expected.entrySet()) {
+            final byte[] actual = values.get(entry.getKey().toUpperCase(Locale.ROOT));
+            if (actual == null) {
+                throw new IllegalArgumentException(entry.getKey() + " digest was not computed.");
+            }
+
+            if (!MessageDigest.isEqual(fromHex(entry.getValue()), actual)) {
+                throw new IOException(entry.getKey() + " digest does not match: expected "
+                        + entry.getValue().toLowerCase(Locale.ROOT) + " but was " + toHex(actual));
+            }
+        }
+    }
+
+    /**
+     * Check that every expected digest is hex, before any output is written.
+     *
+     * @throws IllegalArgumentException if one is not.
+     */
+    static void checkHex(final Map<String, String> expected) {
+        for (final String hex: expected.values()) {
+            fromHex(hex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder s = new StringBuilder();
+        for (final Map.Entry<String, byte[]> entry: values.entrySet()) {
+            s.append(entry.getKey()).append('=').append(toHex(entry.getValue())).append(' ');
+        }
+        return s.append('(').append(bytes).append(" bytes)").toString();
+    }
+
+    static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b: bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(final String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Not a hex digest: " + hex);
+        }
+
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hex digest: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
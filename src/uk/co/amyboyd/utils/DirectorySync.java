@@ -0,0 +1,634 @@
+package uk.co.amyboyd.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies a directory tree to another, in parallel, leaving alone the files
+ * that have not changed.
+ *
+ * <p>The source is walked on the calling thread, which creates the
+ * directories and hands the files, in batches, to a pool of copying
+ * threads. Batches keep the per-file overhead of a tree of many small files
+ * low. Each file is copied by the kernel, as by
+ * {@link FileUtils#copy(File, File, boolean, ProgressListener)}, and given
+ * the source's modification time so that the next sync can tell it has not
+ * changed. Symbolic links are copied as links.
+ *
+ * <p>In incremental mode, a manifest of the size and modification time of
+ * every file copied is kept between syncs. A file that still matches its
+ * manifest entry is skipped without looking at the target at all, so a
+ * repeated mirror of a tree that has hardly changed costs little more than
+ * walking the source. Changes made to the target by anything else are not
+ * noticed for those files.
+ *
+ * <p>Settings may be changed between calls to {@link #sync(File, File)}.
+ */
+public class DirectorySync {
+    private static final int MANIFEST_MAGIC = 0x44534d31;
+
+    private static final int BATCH_FILES = 256;
+
+    private static final long BATCH_BYTES = 16L << 20;
+
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How to decide whether a file in the target is already up to date.
+     */
+    public enum Comparison {
+        /**
+         * Copy every file.
+         */
+        ALWAYS,
+
+        /**
+         * Skip files with the same size and modification time.
+         */
+        SIZE_AND_TIME,
+
+        /**
+         * Skip files with the same size and content, whatever their
+         * modification time. Reads both files when their sizes match.
+         */
+        CONTENT
+    }
+
+    private volatile Comparison comparison = Comparison.SIZE_AND_TIME;
+
+    private volatile int parallelism = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    private volatile File manifest;
+
+    private volatile boolean deleteExtraneous = false;
+
+    /**
+     * The size and modification time of a file, in the manifest.
+     */
+    private static final class Stamp {
+        final long size;
+
+        final long modified;
+
+        Stamp(final long size, final long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Stamp && ((Stamp) o).size == size && ((Stamp) o).modified == modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+
+    /**
+     * A file to bring up to date.
+     */
+    private static final class Item {
+        final String name;
+
+        final Path source;
+
+        final Path target;
+
+        final Stamp stamp;
+
+        Item(final String name, final Path source, final Path target, final Stamp stamp) {
+            this.name = name;
+            this.source = source;
+            this.target = target;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * The state of one call to sync.
+     */
+    private final class Run {
+        final Path source;
+
+        final Path target;
+
+        final Comparison comparison = DirectorySync.this.comparison;
+
+        final Map<String, Stamp> oldManifest;
+
+        final Map<String, Stamp> newManifest;
+
+        final Set<String> seen;
+
+        final ForkJoinPool pool;
+
+        final Semaphore inFlight;
+
+        final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+        final LongAdder copied = new LongAdder();
+
+        final LongAdder skipped = new LongAdder();
+
+        final LongAdder deleted = new LongAdder();
+
+        final LongAdder bytes = new LongAdder();
+
+        final Queue<IOException> errors = new ConcurrentLinkedQueue<IOException>();
+
+        /**
+         * Whether part of the source could not be read.
+         */
+        boolean walkFailed = false;
+
+        List<Item> batch = new ArrayList<Item>();
+
+        long batchBytes = 0;
+
+        Run(final Path source, final Path target, final Map<String, Stamp> oldManifest,
+                final boolean keepManifest, final boolean trackSeen, final int parallelism) {
+            this.source = source;
+            this.target = target;
+            this.oldManifest = oldManifest;
+            this.newManifest = keepManifest ? new ConcurrentHashMap<String, Stamp>() : null;
+            this.seen = trackSeen ? new HashSet<String>() : null;
+            this.pool = new ForkJoinPool(parallelism);
+            // Enough batches queued to keep every thread busy.
+            this.inFlight = new Semaphore(parallelism * 4);
+        }
+
+        void add(final Item item) {
+            batch.add(item);
+            batchBytes += item.stamp.size;
+
+            if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                submit();
+            }
+        }
+
+        void submit() {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            final List<Item> items = batch;
+            batch = new ArrayList<Item>();
+            batchBytes = 0;
+
+            inFlight.acquireUninterruptibly();
+            tasks.add(pool.submit(() -> {
+                try {
+                    copyBatch(this, items);
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Bring the target directory up to date with the source directory. The
+     * target is created if it does not exist.
+     *
+     * @return What was done, including the files that could not be copied.
+     * @throws IOException if the source cannot be walked, or the target or
+     *  the manifest cannot be created.
+     */
+    public SyncResult sync(final File source, final File target) throws IOException {
+        final long start = System.nanoTime();
+        final Path sourcePath = source.toPath().toAbsolutePath().normalize();
+        final Path targetPath = target.toPath().toAbsolutePath().normalize();
+
+        if (!Files.isDirectory(sourcePath)) {
+            throw new IllegalArgumentException("Not a directory: " + source);
+        }
+        if (targetPath.startsWith(sourcePath)) {
+            throw new IllegalArgumentException("Cannot sync a directory into itself: " + target);
+        }
+        if (sourcePath.startsWith(targetPath)) {
+            throw new IllegalArgumentException("Cannot sync a directory into one that contains it: " + target);
+        }
+
+        Files.createDirectories(targetPath);
+
+        final File manifestFile = manifest;
+        final Map<String, Stamp> oldManifest = manifestFile == null
+                ? Collections.<String, Stamp>emptyMap()
+                : readManifest(manifestFile);
+        final Run run = new Run(sourcePath, targetPath, oldManifest, manifestFile != null,
+                deleteExtraneous, parallelism);
+
+        try {
+            walkSource(run);
+
+            for (final ForkJoinTask<?> task: run.tasks) {
+                task.join();
+            }
+
+            if (run.seen != null) {
+                if (run.walkFailed) {
+                    // What was not seen may still be in the source.
+                    Logger.getLogger(DirectorySync.class.getName()).log(Level.WARNING,
+                            "Not deleting from {0}: the source could not all be read", targetPath);
+                } else {
+                    deleteExtraneous(run, manifestFile);
+                }
+            }
+        } finally {
+            run.pool.shutdownNow();
+        }
+
+        if (manifestFile != null) {
+            writeManifest(manifestFile, run.newManifest);
+        }
+
+        return new SyncResult(run.copied.sum(), run.skipped.sum(), run.deleted.sum(), run.bytes.sum(),
+                System.nanoTime() - start, new ArrayList<IOException>(run.errors));
+    }
+
+    private void walkSource(final Run run) throws IOException {
+        Files.walkFileTree(run.source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                final String name = nameOf(run.source, dir);
+                final Path targetDir = run.target.resolve(name);
+
+                try {
+                    // The target root may be a link the caller chose; below
+                    // it, a file or link (perhaps from an earlier sync) is
+                    // replaced rather than written through.
+                    final BasicFileAttributes existing = readAttributes(targetDir);
+                    if (!dir.equals(run.source) && existing != null && !existing.isDirectory()) {
+                        Files.delete(targetDir);
+                    }
+                    Files.createDirectories(targetDir);
+                } catch (final IOException ex) {
+                    // A fault in the target, not the source, so it does not
+                    // stop the deletion of extraneous files.
+                    run.errors.add(new IOException("Cannot create directory for " + dir, ex));
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                if (run.seen != null) {
+                    run.seen.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                final String name = nameOf(run.source, file);
+
+                if (attrs.isSymbolicLink()) {
+                    if (run.seen != null) {
+                        run.seen.add(name);
+                    }
+                    copyLink(run, file, run.target.resolve(name));
+                } else if (attrs.isRegularFile()) {
+                    if (run.seen != null) {
+                        run.seen.add(name);
+                    }
+
+                    final Stamp stamp = new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis());
+                    if (stamp.equals(run.oldManifest.get(name))) {
+                        run.skipped.increment();
+                        run.newManifest.put(name, stamp);
+                    } else {
+                        run.add(new Item(name, file, run.target.resolve(name), stamp));
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                run.errors.add(ex);
+                run.walkFailed = true;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException ex) {
+                if (ex != null) {
+                    run.errors.add(ex);
+                    run.walkFailed = true;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        run.submit();
+    }
+
+    private static void copyBatch(final Run run, final List<Item> items) {
+        ByteBuffer a = null;
+        ByteBuffer b = null;
+
+        for (final Item item: items) {
+            try {
+                boolean upToDate = false;
+                final BasicFileAttributes existing = readAttributes(item.target);
+
+                if (existing != null && !existing.isRegularFile()) {
+                    // Copying would follow a link, perhaps out of the target.
+                    Files.delete(item.target);
+                } else if (run.comparison != Comparison.ALWAYS) {
+                    if (existing != null && existing.size() == item.stamp.size) {
+                        if (existing.lastModifiedTime().toMillis() == item.stamp.modified) {
+                            upToDate = true;
+                        } else if (run.comparison == Comparison.CONTENT) {
+                            if (a == null) {
+                                a = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+                                b = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+                            }
+                            upToDate = sameContent(item.source, item.target, a, b);
+                            if (upToDate) {
+                                // So that the next sync need not read it again.
+                                Files.setLastModifiedTime(item.target, FileTime.fromMillis(item.stamp.modified));
+                            }
+                        }
+                    }
+                }
+
+                if (upToDate) {
+                    run.skipped.increment();
+                } else {
+                    final TransferProgress progress = FileUtils.copy(item.source.toFile(),
+                            item.target.toFile(), false, null);
+                    Files.setLastModifiedTime(item.target, FileTime.fromMillis(item.stamp.modified));
+                    run.copied.increment();
+                    run.bytes.add(progress.getBytesDone());
+                }
+
+                if (run.newManifest != null) {
+                    run.newManifest.put(item.name, item.stamp);
+                }
+            } catch (final IOException ex) {
+                run.errors.add(new IOException("Cannot copy " + item.source + ": " + ex.getMessage(), ex));
+            }
+        }
+    }
+
+    private static void copyLink(final Run run, final Path link, final Path target) {
+        try {
+            final Path destination = Files.readSymbolicLink(link);
+
+            if (Files.isSymbolicLink(target)) {
+                if (Files.readSymbolicLink(target).equals(destination)) {
+                    run.skipped.increment();
+                    return;
+                }
+                Files.delete(target);
+            } else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                Files.delete(target);
+            }
+
+            Files.createSymbolicLink(target, destination);
+            run.copied.increment();
+        } catch (final IOException | UnsupportedOperationException ex) {
+            run.errors.add(new IOException("Cannot copy link " + link + ": " + ex.getMessage(), ex));
+        }
+    }
+
+    /**
+     * Remove everything in the target that the walk of the source did not
+     * see, except the manifest.
+     */
+    private static void deleteExtraneous(final Run run, final File manifestFile) throws IOException {
+        final Path manifestPath = manifestFile == null ? null
+                : manifestFile.toPath().toAbsolutePath().normalize();
+
+        Files.walkFileTree(run.target, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                if (!file.equals(manifestPath) && !run.seen.contains(nameOf(run.target, file))) {
+                    delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                run.errors.add(ex);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException ex) {
+                if (ex != null) {
+                    run.errors.add(ex);
+                } else if (!dir.equals(run.target) && !run.seen.contains(nameOf(run.target, dir))) {
+                    delete(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void delete(final Path path) {
+                try {
+                    Files.delete(path);
+                    run.deleted.increment();
+                } catch (final IOException ex) {
+                    run.errors.add(new IOException("Cannot delete " + path + ": " + ex.getMessage(), ex));
+                }
+            }
+        });
+    }
+
+    private static boolean sameContent(final Path x, final Path y, final ByteBuffer a, final ByteBuffer b)
+            throws IOException {
+        try (FileChannel cx = FileChannel.open(x, StandardOpenOption.READ);
+                FileChannel cy = FileChannel.open(y, StandardOpenOption.READ)) {
+            while (true) {
+                a.clear();
+                b.clear();
+                final int nx = fill(cx, a);
+                final int ny = fill(cy, b);
+                a.flip();
+                b.flip();
+
+                if (nx != ny || a.mismatch(b) >= 0) {
+                    return false;
+                }
+                if (nx < COMPARE_BUFFER_SIZE) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static int fill(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static BasicFileAttributes readAttributes(final Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (final IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The path of a file below the root, with / between names.
+     */
+    private static String nameOf(final Path root, final Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return The manifest, or an empty one if there is none or it cannot be
+     *  read (so every file is compared as usual).
+     */
+    private static Map<String, Stamp> readManifest(final File file) {
+        final Map<String, Stamp> entries = new HashMap<String, Stamp>();
+        if (!file.isFile()) {
+            return entries;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Not a sync manifest");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.put(in.readUTF(), new Stamp(in.readLong(), in.readLong()));
+            }
+            return entries;
+        } catch (final IOException ex) {
+            Logger.getLogger(DirectorySync.class.getName()).log(Level.WARNING,
+                    "Ignoring unreadable manifest " + file, ex);
+            return new HashMap<String, Stamp>();
+        }
+    }
+
+    private static void writeManifest(final File file, final Map<String, Stamp> entries) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeInt(entries.size());
+                for (final Map.Entry<String, Stamp> entry: entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public Comparison getComparison() {
+        return comparison;
+    }
+
+    /**
+     * @param comparison How to decide whether a file in the target is up to
+     *  date. SIZE_AND_TIME by default.
+     */
+    public void setComparison(final Comparison comparison) {
+        if (comparison == null) {
+            throw new IllegalArgumentException("Comparison cannot be null.");
+        }
+
+        this.comparison = comparison;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism Files copied at once. Twice the number of
+     *  processors by default, since copying small files mostly waits on the
+     *  file system.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    public File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Turn on incremental mode.
+     *
+     * @param manifest Where to keep the manifest between syncs, or null for
+     *  none. It may be inside the target; it should not be inside the
+     *  source.
+     */
+    public void setManifest(final File manifest) {
+        this.manifest = manifest;
+    }
+
+    public boolean isDeleteExtraneous() {
+        return deleteExtraneous;
+    }
+
+    /**
+     * @param deleteExtraneous Whether to delete files and directories from
+     *  the target that are not in the source, making it a mirror. Nothing
+     *  is deleted if any of the source could not be read. False by default.
+     */
+    public void setDeleteExtraneous(final boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+}
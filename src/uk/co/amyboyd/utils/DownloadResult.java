@@ -0,0 +1,95 @@
+package uk.co.amyboyd.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * What happened to one URL of a bulk download.
+ *
+ * @see BulkDownloader
+ */
+public final class DownloadResult {
+    final private URL url;
+
+    final private File file;
+
+    final private int statusCode;
+
+    final private long bytes;
+
+    final private int attempts;
+
+    final private long elapsedNanos;
+
+    final private IOException error;
+
+    DownloadResult(final URL url, final File file, final int statusCode, final long bytes,
+            final int attempts, final long elapsedNanos, final IOException error) {
+        this.url = url;
+        this.file = file;
+        this.statusCode = statusCode;
+        this.bytes = bytes;
+        this.attempts = attempts;
+        this.elapsedNanos = elapsedNanos;
+        this.error = error;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return The HTTP status of the last attempt, or -1 if there was none
+     *  (not HTTP, or no response).
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The bytes saved to the file, or 0 if it failed.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return How many times the download was tried, or 0 if it was
+     *  cancelled before it started.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return The time from the first attempt to the last, including waits
+     *  between retries.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return Why the last attempt failed, or null if it succeeded.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return url + " -> " + file + ": "
+                + (error == null ? bytes + " bytes" : "failed (" + error.getMessage() + ")")
+                + ", " + attempts + " attempt(s)"
+                + (statusCode < 0 ? "" : ", HTTP " + statusCode);
+    }
+}
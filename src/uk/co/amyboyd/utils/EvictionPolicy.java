@@ -0,0 +1,422 @@
+package uk.co.amyboyd.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A W-TinyLFU size/weight bound, used by {@link ExpiringMap}.
+ *
+ * <p>New entries go into a small LRU window (1% of the maximum). Entries
+ * leaving the window become candidates for the main space, which is a
+ * segmented LRU (probation and protected). A candidate is only admitted if
+ * the {@link FrequencySketch} says its key has been seen more often than the
+ * probation entry it would replace, so a scan of one-off keys cannot flush
+ * the popular entries.
+ *
+ * <p>Adds and removes take a lock. Reads are recorded in a lossy striped
+ * buffer and replayed when a stripe fills up, if the lock is free; reads
+ * that are dropped only make the policy slightly less accurate.
+ */
+final class EvictionPolicy<T> {
+    private static final int NEW = 0;
+
+    private static final int WINDOW = 1;
+
+    private static final int PROBATION = 2;
+
+    private static final int PROTECTED = 3;
+
+    private static final int REMOVED = 4;
+
+    private static final double WINDOW_PERCENT = 0.01;
+
+    private static final double PROTECTED_PERCENT = 0.80;
+
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Counters are spread out so that stripes do not share a cache line.
+     */
+    private static final int COUNTER_PADDING = 8;
+
+    /**
+     * An entry in the policy. Only changed while holding the policy lock.
+     */
+    static final class Node<T> {
+        final T item;
+
+        final int keyHash;
+
+        final long weight;
+
+        int queue = NEW;
+
+        Node<T> prev;
+
+        Node<T> next;
+
+        Node(final T item, final int keyHash, final long weight) {
+            this.item = item;
+            this.keyHash = keyHash;
+            this.weight = weight;
+        }
+    }
+
+    final private ReentrantLock lock = new ReentrantLock();
+
+    final private FrequencySketch sketch = new FrequencySketch();
+
+    final private Node<T> window = sentinel();
+
+    final private Node<T> probation = sentinel();
+
+    final private Node<T> protectedQueue = sentinel();
+
+    final private int stripeMask;
+
+    final private AtomicLongArray readCounts;
+
+    final private AtomicReferenceArray<Node<T>> readBuffer;
+
+    private long maximum;
+
+    private long windowMaximum;
+
+    private long protectedMaximum;
+
+    private long weightedSize;
+
+    private long windowWeight;
+
+    private long protectedWeight;
+
+    private long count;
+
+    EvictionPolicy(final long maximum) {
+        final int stripes = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.stripeMask = stripes - 1;
+        this.readCounts = new AtomicLongArray(stripes * COUNTER_PADDING);
+        this.readBuffer = new AtomicReferenceArray<Node<T>>(stripes * READ_BUFFER_SIZE);
+
+        setMaximumLocked(maximum);
+    }
+
+    Node<T> newNode(final T item, final int keyHash, final long weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight cannot be negative: " + weight);
+        }
+
+        return new Node<T>(item, keyHash, weight);
+    }
+
+    /**
+     * Add a node, and remove the node it replaces (if any).
+     *
+     * @return The items evicted to make room, in eviction order.
+     */
+    List<T> add(final Node<T> node, final Node<T> replaced) {
+        lock.lock();
+
+        try {
+            drainReadBufferLocked();
+
+            if (replaced != null) {
+                removeLocked(replaced);
+            }
+
+            // Removed before it could be added.
+            if (node.queue != NEW) {
+                return Collections.emptyList();
+            }
+
+            node.queue = WINDOW;
+            linkLast(window, node);
+            windowWeight += node.weight;
+            weightedSize += node.weight;
+            count++;
+
+            sketch.ensureCapacity(count);
+            sketch.increment(node.keyHash);
+
+            return evictLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a read of the node.
+     */
+    void recordAccess(final Node<T> node) {
+        final int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        final long index = readCounts.getAndIncrement(stripe * COUNTER_PADDING);
+        readBuffer.lazySet(stripe * READ_BUFFER_SIZE + (int) (index & READ_BUFFER_MASK), node);
+
+        if ((index & READ_BUFFER_MASK) == READ_BUFFER_MASK && lock.tryLock()) {
+            try {
+                drainReadBufferLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    void remove(final Node<T> node) {
+        lock.lock();
+
+        try {
+            removeLocked(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget every node. Nodes that are still being added are discarded.
+     */
+    void clear() {
+        lock.lock();
+
+        try {
+            for (int i = 0; i < readBuffer.length(); i++) {
+                readBuffer.lazySet(i, null);
+            }
+            clearQueue(window);
+            clearQueue(probation);
+            clearQueue(protectedQueue);
+            weightedSize = 0;
+            windowWeight = 0;
+            protectedWeight = 0;
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The items evicted to fit the new maximum.
+     */
+    List<T> setMaximum(final long maximum) {
+        lock.lock();
+
+        try {
+            setMaximumLocked(maximum);
+            return evictLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMaximum() {
+        lock.lock();
+
+        try {
+            return maximum;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getWeightedSize() {
+        lock.lock();
+
+        try {
+            return weightedSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setMaximumLocked(final long maximum) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("Maximum cannot be negative: " + maximum);
+        }
+
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, (long) (maximum * WINDOW_PERCENT));
+        this.protectedMaximum = (long) ((maximum - windowMaximum) * PROTECTED_PERCENT);
+    }
+
+    private void drainReadBufferLocked() {
+        for (int i = 0; i < readBuffer.length(); i++) {
+            final Node<T> node = readBuffer.getAndSet(i, null);
+            if (node != null) {
+                onAccessLocked(node);
+            }
+        }
+    }
+
+    private void onAccessLocked(final Node<T> node) {
+        switch (node.queue) {
+            case WINDOW:
+                sketch.increment(node.keyHash);
+                unlink(node);
+                linkLast(window, node);
+                break;
+            case PROBATION:
+                sketch.increment(node.keyHash);
+                unlink(node);
+                node.queue = PROTECTED;
+                linkLast(protectedQueue, node);
+                protectedWeight += node.weight;
+                demoteProtectedLocked();
+                break;
+            case PROTECTED:
+                sketch.increment(node.keyHash);
+                unlink(node);
+                linkLast(protectedQueue, node);
+                break;
+            default:
+                // Not added yet, or already removed.
+                break;
+        }
+    }
+
+    private void demoteProtectedLocked() {
+        while (protectedWeight > protectedMaximum && protectedQueue.next != protectedQueue) {
+            final Node<T> node = protectedQueue.next;
+            unlink(node);
+            protectedWeight -= node.weight;
+            node.queue = PROBATION;
+            linkLast(probation, node);
+        }
+    }
+
+    private void removeLocked(final Node<T> node) {
+        switch (node.queue) {
+            case WINDOW:
+                windowWeight -= node.weight;
+                break;
+            case PROTECTED:
+                protectedWeight -= node.weight;
+                break;
+            case PROBATION:
+                break;
+            default:
+                // Not added yet (so it never will be), or already removed.
+                node.queue = REMOVED;
+                return;
+        }
+
+        unlink(node);
+        weightedSize -= node.weight;
+        count--;
+        node.queue = REMOVED;
+    }
+
+    private List<T> evictLocked() {
+        // Entries leaving the window become candidates at the tail of probation.
+        Node<T> candidate = null;
+        while (windowWeight > windowMaximum && window.next != window) {
+            final Node<T> node = window.next;
+            unlink(node);
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            linkLast(probation, node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        if (weightedSize <= maximum) {
+            return Collections.emptyList();
+        }
+
+        final List<T> evicted = new ArrayList<T>(1);
+
+        while (weightedSize > maximum) {
+            Node<T> victim = first(probation);
+
+            if (victim == null) {
+                victim = first(protectedQueue);
+                if (victim == null) {
+                    victim = first(window);
+                }
+                if (victim == null) {
+                    break;
+                }
+                evictLocked(victim, evicted);
+                continue;
+            }
+
+            if (candidate == null || candidate == victim) {
+                if (candidate == victim) {
+                    candidate = next(probation, candidate);
+                }
+                evictLocked(victim, evicted);
+                continue;
+            }
+
+            // Admit the candidate only if it is more popular than the victim.
+            final Node<T> loser;
+            if (candidate.weight > maximum) {
+                loser = candidate;
+            } else if (sketch.frequency(candidate.keyHash) > sketch.frequency(victim.keyHash)) {
+                loser = victim;
+            } else {
+                loser = candidate;
+            }
+
+            if (loser == candidate) {
+                candidate = next(probation, candidate);
+            }
+            evictLocked(loser, evicted);
+        }
+
+        return evicted;
+    }
+
+    private void evictLocked(final Node<T> node, final List<T> evicted) {
+        removeLocked(node);
+        evicted.add(node.item);
+    }
+
+    private void clearQueue(final Node<T> queue) {
+        Node<T> node = queue.next;
+        while (node != queue) {
+            final Node<T> next = node.next;
+            node.queue = REMOVED;
+            node.prev = null;
+            node.next = null;
+            node = next;
+        }
+        queue.prev = queue;
+        queue.next = queue;
+    }
+
+    private Node<T> first(final Node<T> queue) {
+        return queue.next == queue ? null : queue.next;
+    }
+
+    private Node<T> next(final Node<T> queue, final Node<T> node) {
+        return node.next == queue ? null : node.next;
+    }
+
+    private static <T> Node<T> sentinel() {
+        final Node<T> node = new Node<T>(null, 0, 0);
+        node.prev = node;
+        node.next = node;
+        return node;
+    }
+
+    private static <T> void linkLast(final Node<T> queue, final Node<T> node) {
+        node.prev = queue.prev;
+        node.next = queue;
+        queue.prev.next = node;
+        queue.prev = node;
+    }
+
+    private static <T> void unlink(final Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+}
@@ -45,4 +45,12 @@ package uk.co.amyboyd.utils;
  */
 interface ExpirationListener<E> {
     void expired(E expiredObject);
+
+    /**
+     * Called instead of {@link #expired(Object)} when the map knows why the
+     * object was removed. By default this just calls expired(expiredObject).
+     */
+    default void expired(E expiredObject, RemovalCause cause) {
+        expired(expiredObject);
+    }
 }
@@ -0,0 +1,134 @@
+package uk.co.amyboyd.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the expirers of many {@link ExpiringMap}s on a shared timer, instead
+ * of each map having its own thread.
+ *
+ * <p>The timer only decides when each map is due. The expiry itself, and so
+ * the {@link ExpirationListener} callbacks, run on the callback executor,
+ * which by default is the timer thread.
+ */
+public class ExpirationScheduler {
+    private static volatile ExpirationScheduler defaultScheduler;
+
+    final private ScheduledExecutorService timer;
+
+    final private Executor callbackExecutor;
+
+    final private boolean ownsExecutors;
+
+    /**
+     * Creates a scheduler with one daemon timer thread, which also runs the
+     * expiry and listener callbacks.
+     */
+    public ExpirationScheduler() {
+        this(false);
+    }
+
+    /**
+     * Creates a scheduler with one daemon timer thread.
+     *
+     * @param useVirtualThreads
+     *  If true, run expiry and listener callbacks on virtual threads (on
+     *  JVMs without virtual threads, on a pool of daemon threads).
+     */
+    public ExpirationScheduler(boolean useVirtualThreads) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                VirtualThreads.daemonThreadFactory("ExpirationScheduler"));
+        executor.setRemoveOnCancelPolicy(true);
+
+        this.timer = executor;
+        this.callbackExecutor = useVirtualThreads
+                ? VirtualThreads.newExecutor("ExpirationCallback")
+                : null;
+        this.ownsExecutors = true;
+    }
+
+    /**
+     * Creates a scheduler that uses the given executors. They are not shut
+     * down by {@link #shutdown()}.
+     *
+     * @param timer
+     *  Decides when each map is due.
+     * @param callbackExecutor
+     *  Runs the expiry and listener callbacks, or null to run them on the timer.
+     */
+    public ExpirationScheduler(ScheduledExecutorService timer, Executor callbackExecutor) {
+        if (timer == null) {
+            throw new IllegalArgumentException("Timer cannot be null.");
+        }
+
+        this.timer = timer;
+        this.callbackExecutor = callbackExecutor;
+        this.ownsExecutors = false;
+    }
+
+    /**
+     * @return A scheduler shared by every map that asks for it. It is
+     *  created on first use and never shut down.
+     */
+    public static ExpirationScheduler getDefault() {
+        ExpirationScheduler scheduler = defaultScheduler;
+        if (scheduler == null) {
+            synchronized (ExpirationScheduler.class) {
+                scheduler = defaultScheduler;
+                if (scheduler == null) {
+                    scheduler = new ExpirationScheduler();
+                    defaultScheduler = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Run a task every periodMillis until the returned future is cancelled.
+     */
+    ScheduledFuture<?> schedule(final Runnable task, final long periodMillis) {
+        return timer.scheduleWithFixedDelay(dispatching(task), periodMillis, periodMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task once, after delayMillis.
+     */
+    ScheduledFuture<?> scheduleOnce(final Runnable task, final long delayMillis) {
+        return timer.schedule(dispatching(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Runnable dispatching(final Runnable task) {
+        if (callbackExecutor == null) {
+            return task;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                callbackExecutor.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Stop the scheduler. Every map using it stops expiring.
+     */
+    public void shutdown() {
+        if (this == defaultScheduler) {
+            throw new IllegalStateException("The default scheduler cannot be shut down.");
+        }
+
+        if (ownsExecutors) {
+            timer.shutdownNow();
+            if (callbackExecutor instanceof ExecutorService) {
+                ((ExecutorService) callbackExecutor).shutdown();
+            }
+        }
+    }
+}
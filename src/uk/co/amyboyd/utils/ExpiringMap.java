@@ -19,11 +19,36 @@
  */
 package uk.co.amyboyd.utils;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -63,14 +88,85 @@ public class ExpiringMap<K, V> implements Map<K, V> {
      */
     public static final int DEFAULT_EXPIRATION_INTERVAL = 1;
 
+    /**
+     * How the expirer finds the objects that should be removed.
+     */
+    public enum ExpirationStrategy {
+        /**
+         * Check every object in the map on every run. The cost of a run is
+         * proportional to the size of the map.
+         */
+        SCAN,
+
+        /**
+         * Keep objects in a hierarchical timing wheel, and only check the
+         * objects whose bucket is due. The cost of a run is proportional to
+         * the number of objects that are due.
+         */
+        TIMING_WHEEL,
+
+        /**
+         * Keep objects ordered by deadline, and sleep until the next one is
+         * due rather than for the expiration interval, which is not used.
+         * Objects are removed as soon as they expire, and an empty map does
+         * not wake up at all. Each put costs O(log n).
+         */
+        DEADLINE_QUEUE
+    }
+
+    /**
+     * What an object's time-to-live is counted from.
+     */
+    public enum ExpirationPolicy {
+        /**
+         * Expire objects that have not been read or written for the
+         * time-to-live.
+         */
+        ACCESSED,
+
+        /**
+         * Expire objects the time-to-live after they were put, however
+         * often they are read.
+         */
+        CREATED
+    }
+
+    /**
+     * Marks an object that uses the map's time-to-live.
+     */
+    private static final long DEFAULT_TIME_TO_LIVE_MILLIS = Long.MIN_VALUE;
+
     private static volatile int expirerCount = 1;
 
     final private ConcurrentHashMap<K, ExpiringObject> delegate;
 
     final private CopyOnWriteArrayList<ExpirationListener<V>> expirationListeners;
 
+    final private CopyOnWriteArrayList<BatchExpirationListener<K, V>> batchExpirationListeners =
+            new CopyOnWriteArrayList<BatchExpirationListener<K, V>>();
+
     final private Expirer expirer;
 
+    /**
+     * computeIfAbsent calls in progress, so that concurrent misses on a key
+     * wait for the first one instead of computing the value again.
+     */
+    final private ConcurrentHashMap<K, CompletableFuture<V>> computations =
+            new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    private volatile EvictionPolicy<ExpiringObject> evictionPolicy;
+
+    private volatile Weigher<? super K, ? super V> weigher;
+
+    private volatile StatsCounter stats = StatsCounter.DISABLED;
+
+    private volatile ListenerDispatcher<K, V> listenerDispatcher;
+
+    /**
+     * The name the MXBean is registered under, or null. Guarded by this.
+     */
+    private ObjectName mbeanName;
+
     /**
      * Creates a new instance of ExpiringMap using the default values
      * DEFAULT_TIME_TO_LIVE and DEFAULT_EXPIRATION_INTERVAL
@@ -101,27 +197,91 @@ public class ExpiringMap<K, V> implements Map<K, V> {
      *  The time between checks to see if a value should be removed (seconds)
      */
     public ExpiringMap(int timeToLive, int expirationInterval) {
+        this(timeToLive, expirationInterval, ExpirationStrategy.SCAN);
+    }
+
+    /**
+     * Creates a new instance of ExpiringMap using the supplied values and
+     * a {@link ConcurrentHashMap} for the internal data structure.
+     *
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param expirationStrategy
+     *  How the expirer finds the values that should be removed
+     */
+    public ExpiringMap(int timeToLive, int expirationInterval,
+            ExpirationStrategy expirationStrategy) {
+        this(timeToLive, expirationInterval, expirationStrategy, null);
+    }
+
+    /**
+     * Creates a new instance of ExpiringMap whose expirer runs on a shared
+     * scheduler instead of its own thread.
+     *
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param expirationStrategy
+     *  How the expirer finds the values that should be removed
+     * @param scheduler
+     *  The scheduler to run the expirer on, or null for a dedicated thread
+     */
+    public ExpiringMap(int timeToLive, int expirationInterval,
+            ExpirationStrategy expirationStrategy, ExpirationScheduler scheduler) {
         this(new ConcurrentHashMap<K, ExpiringObject>(100),
                 new CopyOnWriteArrayList<ExpirationListener<V>>(),
                 timeToLive,
-                expirationInterval);
+                expirationInterval,
+                expirationStrategy,
+                scheduler);
     }
 
     private ExpiringMap(ConcurrentHashMap<K, ExpiringObject> delegate,
             CopyOnWriteArrayList<ExpirationListener<V>> expirationListeners,
             int timeToLive,
-            int expirationInterval) {
+            int expirationInterval,
+            ExpirationStrategy expirationStrategy,
+            ExpirationScheduler scheduler) {
         this.delegate = delegate;
         this.expirationListeners = expirationListeners;
-        this.expirer = new Expirer();
+        this.expirer = new Expirer(expirationStrategy, scheduler);
         this.expirer.setTimeToLive(timeToLive);
         this.expirer.setExpirationInterval(expirationInterval);
     }
 
     @Override
     public V put(K key, V value) {
-        ExpiringObject answer = delegate.put(key, new ExpiringObject(key,
-                value, System.currentTimeMillis()));
+        return put(key, value, DEFAULT_TIME_TO_LIVE_MILLIS,
+                expirer.currentTimeMillis());
+    }
+
+    /**
+     * Put a value that has its own time-to-live, instead of the map's.
+     *
+     * @param timeToLive
+     *  The time-to-live value. Zero or less means the value never expires.
+     *  Times finer than a millisecond are rounded up.
+     * @param unit
+     *  The unit of timeToLive
+     * @return
+     *  The previous value for the key, or null.
+     */
+    public V put(K key, V value, long timeToLive, TimeUnit unit) {
+        return put(key, value, toMillisRoundedUp(timeToLive, unit),
+                expirer.currentTimeMillis());
+    }
+
+    private V put(K key, V value, long timeToLiveMillis, long creationTime) {
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        ExpiringObject object = newObject(key, value, timeToLiveMillis,
+                creationTime, policy);
+
+        ExpiringObject answer = delegate.put(key, object);
+        added(object, answer, policy);
+
         if (answer == null) {
             return null;
         }
@@ -129,19 +289,218 @@ public class ExpiringMap<K, V> implements Map<K, V> {
         return answer.getValue();
     }
 
+    /**
+     * Replace the key's value, if it still has one, with a new value that
+     * has the same time-to-live (its own, or the map's). Used to put a
+     * reloaded value; if the key has been removed or put again since, the
+     * map is not changed.
+     *
+     * @param oldValue
+     *  The value that was reloaded
+     * @return
+     *  Whether the value was replaced.
+     */
+    boolean replaceReloaded(K key, V oldValue, V newValue) {
+        ExpiringObject current = delegate.get(key);
+        if (current == null || current.getValue() != oldValue) {
+            return false;
+        }
+
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        ExpiringObject object = newObject(key, newValue,
+                current.getTimeToLiveMillis(), expirer.currentTimeMillis(), policy);
+
+        // Compares the objects by identity first, so no other put is lost.
+        if (!delegate.replace(key, current, object)) {
+            return false;
+        }
+
+        added(object, current, policy);
+        return true;
+    }
+
+    private ExpiringObject newObject(K key, V value, long timeToLiveMillis,
+            long creationTime, EvictionPolicy<ExpiringObject> policy) {
+        ExpiringObject object = new ExpiringObject(key, value,
+                creationTime, timeToLiveMillis);
+
+        if (policy != null) {
+            Weigher<? super K, ? super V> w = weigher;
+            object.policyNode = policy.newNode(object, key.hashCode(),
+                    w == null ? 1 : w.weigh(key, value));
+        }
+
+        return object;
+    }
+
+    /**
+     * Schedule, count and bound an object just put in place of answer.
+     */
+    private void added(ExpiringObject object, ExpiringObject answer,
+            EvictionPolicy<ExpiringObject> policy) {
+        expirer.schedule(object);
+        stats.recordPut();
+
+        if (answer != null) {
+            expirer.unschedule(answer);
+        }
+
+        if (policy != null) {
+            evict(policy.add(object.policyNode,
+                    answer == null ? null : answer.policyNode));
+        }
+    }
+
     @Override
     public V get(Object key) {
         ExpiringObject object = delegate.get(key);
 
         if (object != null) {
-            object.setLastAccessTime(System.currentTimeMillis());
+            if (expirer.getExpirationPolicy() == ExpirationPolicy.ACCESSED) {
+                object.setLastAccessTime(CoarseClock.currentTimeMillis());
+            }
+
+            EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+            if (policy != null && object.policyNode != null) {
+                policy.recordAccess(object.policyNode);
+            }
 
+            stats.recordHit();
             return object.getValue();
         }
 
+        stats.recordMiss();
         return null;
     }
 
+    /**
+     * If the key has no value, compute one and put it. Concurrent calls for
+     * the same key share a single call of the mapping function; the others
+     * wait for its result.
+     *
+     * <p>Unlike ConcurrentHashMap, no lock is held while the function runs,
+     * so a slow function does not block other keys.
+     *
+     * @return
+     *  The current (existing or computed) value, or null if the function
+     *  returned null.
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        return computeAbsent(key, mappingFunction);
+    }
+
+    /**
+     * The rest of {@link #computeIfAbsent(Object, Function)}, for a caller
+     * whose own lookup of the key missed. Looking again does not count as a
+     * hit or a miss, so a load records one miss and one put.
+     */
+    V computeAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        CompletableFuture<V> computation = new CompletableFuture<V>();
+        CompletableFuture<V> existing = computations.putIfAbsent(key, computation);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            // Another call may have finished between the get and the putIfAbsent.
+            V value = peek(key);
+            if (value == null) {
+                value = mappingFunction.apply(key);
+                if (value != null) {
+                    put(key, value);
+                }
+            }
+
+            computation.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            computation.completeExceptionally(e);
+            throw e;
+        } finally {
+            computations.remove(key, computation);
+        }
+    }
+
+    /**
+     * @return
+     *  The key's value, or null. Not counted as an access or in the
+     *  statistics.
+     */
+    private V peek(Object key) {
+        ExpiringObject object = delegate.get(key);
+        return object == null ? null : object.getValue();
+    }
+
+    /**
+     * @return
+     *  How long until the key's value expires, if it is not accessed again;
+     *  Long.MAX_VALUE if it never expires; or -1 if the key has no value.
+     */
+    public long getRemainingTimeToLive(Object key, TimeUnit unit) {
+        ExpiringObject object = delegate.get(key);
+        if (object == null) {
+            return -1;
+        }
+
+        long deadline = expirer.getDeadline(object);
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        return unit.convert(Math.max(0, deadline - expirer.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Visit every entry, for {@link ExpiringMapSnapshot}. Does not count as
+     * an access.
+     */
+    void visitEntries(ExpiringMapSnapshot.EntryVisitor<K, V> visitor) throws IOException {
+        for (ExpiringObject o: delegate.values()) {
+            long ownTtl = o.getTimeToLiveMillis();
+            visitor.visit(o.getKey(), o.getValue(),
+                    ownTtl == DEFAULT_TIME_TO_LIVE_MILLIS ? -1 : ownTtl,
+                    expirer.getDeadline(o));
+        }
+    }
+
+    /**
+     * Put an entry restored by {@link ExpiringMapSnapshot}, backdated so
+     * that it expires at the deadline it had when it was saved.
+     *
+     * @param ownTimeToLiveMillis
+     *  The entry's own time-to-live, or -1 if it uses the map's
+     * @param deadline
+     *  When the entry expires (milliseconds), or Long.MAX_VALUE for never
+     */
+    void putRestored(K key, V value, long ownTimeToLiveMillis, long deadline) {
+        long ttl = ownTimeToLiveMillis < 0 ? DEFAULT_TIME_TO_LIVE_MILLIS : ownTimeToLiveMillis;
+        long effectiveTtl = ttl == DEFAULT_TIME_TO_LIVE_MILLIS ? expirer.timeToLiveMillis : ttl;
+        long timeNow = expirer.currentTimeMillis();
+
+        if (deadline == Long.MAX_VALUE || effectiveTtl <= 0) {
+            put(key, value, ttl, timeNow);
+        } else {
+            put(key, value, ttl, Math.min(timeNow, deadline - effectiveTtl));
+        }
+    }
+
     @Override
     public V remove(Object key) {
         ExpiringObject answer = delegate.remove(key);
@@ -149,17 +508,41 @@ public class ExpiringMap<K, V> implements Map<K, V> {
             return null;
         }
 
+        expirer.unschedule(answer);
+        removeFromPolicy(answer);
+
         return answer.getValue();
     }
 
+    /**
+     * Remove the key only if its value equals the given value, atomically.
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        ExpiringObject object = delegate.get(key);
+        return object != null && object.getValue().equals(value) && removeObject(object);
+    }
+
     @Override
     public boolean containsKey(Object key) {
         return delegate.containsKey(key);
     }
 
+    /**
+     * Checks every entry. Does not count as an access.
+     */
     @Override
     public boolean containsValue(Object value) {
-        return delegate.containsValue(value);
+        if (value == null) {
+            return false;
+        }
+
+        for (ExpiringObject o: delegate.values()) {
+            if (value.equals(o.getValue())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -175,6 +558,12 @@ public class ExpiringMap<K, V> implements Map<K, V> {
     @Override
     public void clear() {
         delegate.clear();
+        expirer.clearSchedule();
+
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        if (policy != null) {
+            policy.clear();
+        }
     }
 
     @Override
@@ -199,14 +588,203 @@ public class ExpiringMap<K, V> implements Map<K, V> {
         }
     }
 
+    /**
+     * A live view of the values. Like the views of ConcurrentHashMap, its
+     * iterators are weakly consistent and never throw
+     * ConcurrentModificationException. Reading through the view does not
+     * count as an access, so it does not delay expiry.
+     */
     @Override
     public Collection<V> values() {
-        throw new UnsupportedOperationException();
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                final ViewIterator i = new ViewIterator();
+                return new Iterator<V>() {
+                    @Override
+                    public boolean hasNext() {
+                        return i.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        return i.next().getValue();
+                    }
+
+                    @Override
+                    public void remove() {
+                        i.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ExpiringMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+
+            @Override
+            public void clear() {
+                ExpiringMap.this.clear();
+            }
+        };
     }
 
+    /**
+     * A live view of the entries, with the same guarantees as
+     * {@link #values()}. The entries are snapshots and do not support
+     * setValue.
+     */
     @Override
     public Set<Map.Entry<K, V>> entrySet() {
-        throw new UnsupportedOperationException();
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final ViewIterator i = new ViewIterator();
+                return new Iterator<Map.Entry<K, V>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return i.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        ExpiringObject o = i.next();
+                        return new AbstractMap.SimpleImmutableEntry<K, V>(o.getKey(), o.getValue());
+                    }
+
+                    @Override
+                    public void remove() {
+                        i.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ExpiringMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                ExpiringObject object = delegate.get(e.getKey());
+                return object != null && object.getValue().equals(e.getValue());
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                ExpiringObject object = delegate.get(e.getKey());
+                return object != null
+                        && object.getValue().equals(e.getValue())
+                        && removeObject(object);
+            }
+
+            @Override
+            public void clear() {
+                ExpiringMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Call the action for every entry, in parallel if the map has at least
+     * parallelismThreshold entries. Does not count as an access.
+     *
+     * @see ConcurrentHashMap#forEach(long, BiConsumer)
+     */
+    public void forEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        delegate.forEach(parallelismThreshold, (k, o) -> action.accept(k, o.getValue()));
+    }
+
+    /**
+     * Transform every entry and combine the non-null results, in parallel if
+     * the map has at least parallelismThreshold entries. Does not count as an
+     * access.
+     *
+     * @return The combined result, or null if every transformation was null.
+     * @see ConcurrentHashMap#reduce(long, BiFunction, BiFunction)
+     */
+    public <U> U reduce(long parallelismThreshold,
+            BiFunction<? super K, ? super V, ? extends U> transformer,
+            BiFunction<? super U, ? super U, ? extends U> reducer) {
+        return delegate.reduce(parallelismThreshold,
+                (k, o) -> transformer.apply(k, o.getValue()),
+                reducer);
+    }
+
+    /**
+     * Remove every entry that matches the filter, checking entries in
+     * parallel if the map has at least parallelismThreshold entries. The
+     * expiration listeners are not called, as with {@link #remove(Object)}.
+     *
+     * @return The number of entries removed.
+     */
+    public long removeIf(long parallelismThreshold, BiPredicate<? super K, ? super V> filter) {
+        LongAdder removed = new LongAdder();
+
+        delegate.forEach(parallelismThreshold, (k, o) -> {
+            if (filter.test(k, o.getValue()) && removeObject(o)) {
+                removed.increment();
+            }
+        });
+
+        return removed.sum();
+    }
+
+    /**
+     * Remove the object if it is still the value for its key.
+     */
+    private boolean removeObject(ExpiringObject o) {
+        if (!delegate.remove(o.getKey(), o)) {
+            return false;
+        }
+
+        expirer.unschedule(o);
+        removeFromPolicy(o);
+        return true;
+    }
+
+    /**
+     * Iterates the delegate's objects; remove() keeps the eviction policy in
+     * step.
+     */
+    private class ViewIterator {
+        final private Iterator<ExpiringObject> i = delegate.values().iterator();
+
+        private ExpiringObject last;
+
+        boolean hasNext() {
+            return i.hasNext();
+        }
+
+        ExpiringObject next() {
+            last = i.next();
+            return last;
+        }
+
+        void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+
+            removeObject(last);
+            last = null;
+        }
     }
 
     public void addExpirationListener(ExpirationListener<V> listener) {
@@ -217,24 +795,380 @@ public class ExpiringMap<K, V> implements Map<K, V> {
         expirationListeners.remove(listener);
     }
 
-    public Expirer getExpirer() {
-        return expirer;
+    /**
+     * Add a listener that is told about removed entries in batches. Batches
+     * only have more than one entry in async dispatch mode.
+     *
+     * @see #setAsyncListenerDispatch(Executor, int, int)
+     */
+    public void addBatchExpirationListener(BatchExpirationListener<K, V> listener) {
+        batchExpirationListeners.add(listener);
+    }
+
+    public void removeBatchExpirationListener(BatchExpirationListener<K, V> listener) {
+        batchExpirationListeners.remove(listener);
+    }
+
+    /**
+     * Call the listeners on the executor, instead of on the thread that
+     * removed the entries (usually the expirer). Removed entries are queued
+     * and handed to the listeners in batches, in the order they were removed.
+     *
+     * <p>When maxQueued notifications are waiting, the expirer blocks until
+     * the listeners catch up.
+     *
+     * @param executor
+     *  Runs the listeners. Null switches back to calling them directly.
+     * @param maxQueued
+     *  The most notifications that can wait to be delivered
+     * @param maxBatchSize
+     *  The most entries given to a batch listener in one call
+     */
+    public void setAsyncListenerDispatch(Executor executor, int maxQueued, int maxBatchSize) {
+        listenerDispatcher = executor == null
+                ? null
+                : new ListenerDispatcher<K, V>(executor, maxQueued, maxBatchSize, this::deliver);
+    }
+
+    /**
+     * Bound the map to a number of entries. When the map is full, the
+     * entries least likely to be used again are evicted, and the
+     * expiration listeners are told with {@link RemovalCause#SIZE}.
+     *
+     * <p>The map must be empty the first time this is called. After that,
+     * the maximum can be changed at any time.
+     */
+    public void setMaximumSize(long maximumSize) {
+        setMaximum(maximumSize, null);
+    }
+
+    /**
+     * Bound the map to a total weight, as calculated by the weigher. Works
+     * like {@link #setMaximumSize(long)}.
+     */
+    public void setMaximumWeight(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        if (weigher == null) {
+            throw new IllegalArgumentException("Weigher cannot be null.");
+        }
+
+        setMaximum(maximumWeight, weigher);
+    }
+
+    /**
+     * @return
+     *  The maximum size or weight, or -1 if the map is not bounded.
+     */
+    public long getMaximum() {
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        return policy == null ? -1 : policy.getMaximum();
+    }
+
+    /**
+     * @return
+     *  The total weight of the entries (their number, if bounded by size),
+     *  or -1 if the map is not bounded.
+     */
+    public long getWeightedSize() {
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        return policy == null ? -1 : policy.getWeightedSize();
+    }
+
+    private synchronized void setMaximum(long maximum,
+            Weigher<? super K, ? super V> newWeigher) {
+        if (evictionPolicy == null) {
+            if (!delegate.isEmpty()) {
+                throw new IllegalStateException(
+                        "The maximum must first be set while the map is empty.");
+            }
+
+            weigher = newWeigher;
+            evictionPolicy = new EvictionPolicy<ExpiringObject>(maximum);
+            return;
+        }
+
+        if ((weigher == null) != (newWeigher == null)) {
+            throw new IllegalStateException(
+                    "Cannot switch between a maximum size and a maximum weight.");
+        }
+
+        weigher = newWeigher;
+        evict(evictionPolicy.setMaximum(maximum));
+    }
+
+    private void evict(List<ExpiringObject> victims) {
+        for (ExpiringObject o: victims) {
+            if (delegate.remove(o.getKey(), o)) {
+                expirer.unschedule(o);
+                stats.recordEviction();
+                notifyListeners(o, RemovalCause.SIZE);
+            }
+        }
+    }
+
+    private void removeFromPolicy(ExpiringObject o) {
+        EvictionPolicy<ExpiringObject> policy = evictionPolicy;
+        if (policy != null && o.policyNode != null) {
+            policy.remove(o.policyNode);
+        }
+    }
+
+    private void notifyListeners(ExpiringObject o, RemovalCause cause) {
+        ListenerDispatcher<K, V> dispatcher = listenerDispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(o.getKey(), o.getValue(), cause);
+            return;
+        }
+
+        if (batchExpirationListeners.isEmpty()) {
+            StatsCounter s = stats;
+            for (ExpirationListener<V> listener: expirationListeners) {
+                long start = s.startTimer();
+                listener.expired(o.getValue(), cause);
+                s.recordListenerTime(start);
+            }
+            return;
+        }
+
+        deliver(Collections.<Map.Entry<K, V>>singletonList(
+                new AbstractMap.SimpleImmutableEntry<K, V>(o.getKey(), o.getValue())), cause);
+    }
+
+    private void deliver(List<Map.Entry<K, V>> entries, RemovalCause cause) {
+        StatsCounter s = stats;
+
+        for (ExpirationListener<V> listener: expirationListeners) {
+            for (Map.Entry<K, V> entry: entries) {
+                long start = s.startTimer();
+                listener.expired(entry.getValue(), cause);
+                s.recordListenerTime(start);
+            }
+        }
+
+        for (BatchExpirationListener<K, V> listener: batchExpirationListeners) {
+            long start = s.startTimer();
+            listener.expired(entries, cause);
+            s.recordListenerTime(start);
+        }
+    }
+
+    /**
+     * Turn statistics on or off. They are off by default, and cost nothing
+     * while off. Turning them on starts from zero.
+     */
+    public void setStatisticsEnabled(boolean enabled) {
+        if (enabled != isStatisticsEnabled()) {
+            stats = enabled ? new StatsCounter.Concurrent() : StatsCounter.DISABLED;
+        }
+    }
+
+    public boolean isStatisticsEnabled() {
+        return stats != StatsCounter.DISABLED;
+    }
+
+    /**
+     * @return
+     *  The statistics since they were enabled. All zero if they are disabled.
+     */
+    public ExpiringMapStats getStats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Register an {@link ExpiringMapMXBean} for this map with the platform
+     * MBean server, as "uk.co.amyboyd.utils:type=ExpiringMap,name=<name>".
+     * It is unregistered by {@link #unregisterMBean()}, or when the expirer
+     * is stopped; until then the MBean server keeps the map reachable.
+     *
+     * @return
+     *  The name it was registered under.
+     * @throws JMException if the name is invalid or already registered.
+     * @throws IllegalStateException if the map is already registered.
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        if (mbeanName != null) {
+            throw new IllegalStateException("Already registered as " + mbeanName);
+        }
+
+        ObjectName objectName = new ObjectName("uk.co.amyboyd.utils:type=ExpiringMap,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), objectName);
+        mbeanName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregister the MXBean, if {@link #registerMBean(String)} registered one.
+     */
+    public synchronized void unregisterMBean() {
+        if (mbeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered through the server.
+        } catch (JMException e) {
+            Logger.getLogger(ExpiringMap.class.getName()).log(Level.SEVERE, null, e);
+        } finally {
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * Exposes the map's statistics over JMX.
+     */
+    private class MXBean implements ExpiringMapMXBean {
+        @Override
+        public int getSize() {
+            return size();
+        }
+
+        @Override
+        public boolean isStatisticsEnabled() {
+            return ExpiringMap.this.isStatisticsEnabled();
+        }
+
+        @Override
+        public void setStatisticsEnabled(boolean enabled) {
+            ExpiringMap.this.setStatisticsEnabled(enabled);
+        }
+
+        @Override
+        public long getHitCount() {
+            return getStats().getHitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return getStats().getMissCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return getStats().getHitRate();
+        }
+
+        @Override
+        public long getPutCount() {
+            return getStats().getPutCount();
+        }
+
+        @Override
+        public long getExpirationCount() {
+            return getStats().getExpirationCount();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return getStats().getEvictionCount();
+        }
+
+        @Override
+        public long getScanCount() {
+            return getStats().getScanTime().getCount();
+        }
+
+        @Override
+        public double getScanTimeMeanMillis() {
+            return getStats().getScanTime().getMeanNanos() / 1e6;
+        }
+
+        @Override
+        public double getScanTime99thPercentileMillis() {
+            return getStats().getScanTime().getPercentileNanos(99) / 1e6;
+        }
+
+        @Override
+        public long getListenerCallCount() {
+            return getStats().getListenerTime().getCount();
+        }
+
+        @Override
+        public double getListenerTimeMeanMillis() {
+            return getStats().getListenerTime().getMeanNanos() / 1e6;
+        }
+
+        @Override
+        public double getListenerTime99thPercentileMillis() {
+            return getStats().getListenerTime().getPercentileNanos(99) / 1e6;
+        }
+    }
+
+    public Expirer getExpirer() {
+        return expirer;
+    }
+
+    public int getExpirationInterval() {
+        return expirer.getExpirationInterval();
+    }
+
+    public int getTimeToLive() {
+        return expirer.getTimeToLive();
+    }
+
+    public ExpirationStrategy getExpirationStrategy() {
+        return expirer.getExpirationStrategy();
+    }
+
+    public ExpirationPolicy getExpirationPolicy() {
+        return expirer.getExpirationPolicy();
+    }
+
+    public void setExpirationPolicy(ExpirationPolicy expirationPolicy) {
+        expirer.setExpirationPolicy(expirationPolicy);
+    }
+
+    public void setExpirationInterval(int expirationInterval) {
+        expirer.setExpirationInterval(expirationInterval);
+    }
+
+    public void setTimeToLive(int timeToLive) {
+        expirer.setTimeToLive(timeToLive);
+    }
+
+    /**
+     * @see Expirer#getTimeToLive(TimeUnit)
+     */
+    public long getTimeToLive(TimeUnit unit) {
+        return expirer.getTimeToLive(unit);
     }
 
-    public int getExpirationInterval() {
-        return expirer.getExpirationInterval();
+    /**
+     * @see Expirer#setTimeToLive(long, TimeUnit)
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        expirer.setTimeToLive(timeToLive, unit);
     }
 
-    public int getTimeToLive() {
-        return expirer.getTimeToLive();
+    /**
+     * @see Expirer#getExpirationInterval(TimeUnit)
+     */
+    public long getExpirationInterval(TimeUnit unit) {
+        return expirer.getExpirationInterval(unit);
     }
 
-    public void setExpirationInterval(int expirationInterval) {
-        expirer.setExpirationInterval(expirationInterval);
+    /**
+     * @see Expirer#setExpirationInterval(long, TimeUnit)
+     */
+    public void setExpirationInterval(long expirationInterval, TimeUnit unit) {
+        expirer.setExpirationInterval(expirationInterval, unit);
     }
 
-    public void setTimeToLive(int timeToLive) {
-        expirer.setTimeToLive(timeToLive);
+    /**
+     * @return The time in milliseconds, rounded up so that a short
+     *  time-to-live is not lost; zero if the time is zero or less.
+     */
+    private static long toMillisRoundedUp(long time, TimeUnit unit) {
+        if (time <= 0) {
+            return 0;
+        }
+
+        long millis = unit.toMillis(time);
+        if (millis == Long.MAX_VALUE || unit.convert(millis, TimeUnit.MILLISECONDS) >= time) {
+            return millis;
+        }
+        return millis + 1;
     }
 
     private class ExpiringObject {
@@ -242,11 +1176,28 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 
         private V value;
 
-        private long lastAccessTime;
+        /**
+         * Written without a lock; a racing reader or writer at worst sees
+         * a time that is one clock tick old.
+         */
+        private volatile long lastAccessTime;
+
+        final private long creationTime;
+
+        final private long timeToLiveMillis;
+
+        /**
+         * Set before the object is put in the delegate, if the map is bounded.
+         */
+        private EvictionPolicy.Node<ExpiringObject> policyNode;
 
-        final private ReadWriteLock lastAccessTimeLock = new ReentrantReadWriteLock();
+        /**
+         * Where the expirer last scheduled the object (a TimingWheel.Node or
+         * DeadlineQueue.Entry), or null.
+         */
+        private volatile Object timerNode;
 
-        ExpiringObject(K key, V value, long lastAccessTime) {
+        ExpiringObject(K key, V value, long creationTime, long timeToLiveMillis) {
             if (value == null) {
                 throw new IllegalArgumentException(
                         "An expiring object cannot be null.");
@@ -254,29 +1205,35 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 
             this.key = key;
             this.value = value;
-            this.lastAccessTime = lastAccessTime;
+            this.lastAccessTime = creationTime;
+            this.creationTime = creationTime;
+            this.timeToLiveMillis = timeToLiveMillis;
         }
 
         public long getLastAccessTime() {
-            lastAccessTimeLock.readLock().lock();
-
-            try {
-                return lastAccessTime;
-            } finally {
-                lastAccessTimeLock.readLock().unlock();
-            }
+            return lastAccessTime;
         }
 
         public void setLastAccessTime(long lastAccessTime) {
-            lastAccessTimeLock.writeLock().lock();
-
-            try {
+            // Skip the write (and the cache line invalidation on hot keys)
+            // when the clock has not moved on.
+            if (lastAccessTime - this.lastAccessTime >= CoarseClock.RESOLUTION_MILLIS) {
                 this.lastAccessTime = lastAccessTime;
-            } finally {
-                lastAccessTimeLock.writeLock().unlock();
             }
         }
 
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        /**
+         * @return
+         *  This object's own time-to-live, or DEFAULT_TIME_TO_LIVE_MILLIS.
+         */
+        public long getTimeToLiveMillis() {
+            return timeToLiveMillis;
+        }
+
         public K getKey() {
             return key;
         }
@@ -300,33 +1257,102 @@ public class ExpiringMap<K, V> implements Map<K, V> {
      * A Thread that monitors an {@link ExpiringMap} and will remove
      * elements that have passed the threshold.
      *
+     * <p>If the expirer has an {@link ExpirationScheduler}, it runs on the
+     * scheduler and no thread of its own is created.
      */
     public class Expirer implements Runnable {
         final private ReadWriteLock stateLock = new ReentrantReadWriteLock();
 
-        private long timeToLiveMillis;
+        private volatile long timeToLiveMillis;
+
+        private volatile ExpirationPolicy expirationPolicy = ExpirationPolicy.ACCESSED;
 
         private long expirationIntervalMillis;
 
-        private boolean running = false;
+        private volatile boolean running = false;
+
+        private volatile Thread expirerThread;
 
-        final private Thread expirerThread;
+        private ScheduledFuture<?> scheduledTask;
+
+        final private ExpirationScheduler scheduler;
+
+        final private AtomicBoolean expiring = new AtomicBoolean();
+
+        final private ExpirationStrategy expirationStrategy;
+
+        final private TimingWheel<ExpiringObject> timingWheel;
+
+        final private DeadlineQueue<ExpiringObject> deadlineQueue;
+
+        /**
+         * Guards scheduledTask and wakeAt for a deadline queue on a scheduler.
+         */
+        final private Object wakeLock = new Object();
+
+        /**
+         * When the scheduled run of a deadline queue is due, or
+         * Long.MAX_VALUE if none is scheduled.
+         */
+        private long wakeAt = Long.MAX_VALUE;
+
+        final private AtomicBoolean missedRun = new AtomicBoolean();
 
         /**
          * Creates a new instance of Expirer.
          *
          */
         public Expirer() {
-            expirerThread = new Thread(this, "ExpiringMapExpirer-"
-                    + expirerCount++);
-            expirerThread.setDaemon(true);
+            this(ExpirationStrategy.SCAN);
+        }
+
+        /**
+         * Creates a new instance of Expirer.
+         *
+         * @param expirationStrategy
+         *  How to find the objects that should be removed
+         */
+        public Expirer(ExpirationStrategy expirationStrategy) {
+            this(expirationStrategy, null);
+        }
+
+        /**
+         * Creates a new instance of Expirer.
+         *
+         * @param expirationStrategy
+         *  How to find the objects that should be removed
+         * @param scheduler
+         *  The scheduler to run on, or null for a dedicated thread
+         */
+        public Expirer(ExpirationStrategy expirationStrategy, ExpirationScheduler scheduler) {
+            this.expirationStrategy = expirationStrategy;
+            this.scheduler = scheduler;
+            if (expirationStrategy == ExpirationStrategy.TIMING_WHEEL) {
+                timingWheel = new TimingWheel<ExpiringObject>(
+                        this::getDeadline,
+                        1000,
+                        System.currentTimeMillis());
+            } else {
+                timingWheel = null;
+            }
+            if (expirationStrategy == ExpirationStrategy.DEADLINE_QUEUE) {
+                deadlineQueue = new DeadlineQueue<ExpiringObject>(this::getDeadline);
+                deadlineQueue.setWakeup(this::onEarlierDeadline);
+            } else {
+                deadlineQueue = null;
+            }
         }
 
         @Override
         public void run() {
-            while (running) {
+            while (running && Thread.currentThread() == expirerThread) {
                 processExpires();
 
+                if (deadlineQueue != null) {
+                    parkUntilNextDeadline();
+                    continue;
+                }
+
                 try {
                     Thread.sleep(expirationIntervalMillis);
                 } catch (final InterruptedException e) {
@@ -334,27 +1360,346 @@ public class ExpiringMap<K, V> implements Map<K, V> {
             }
         }
 
+        /**
+         * One run of the expirer on the scheduler. A run is skipped if the
+         * previous one has not finished.
+         */
+        private void runScheduled() {
+            if (deadlineQueue != null) {
+                runScheduledDeadlines();
+                return;
+            }
+
+            if (!expiring.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                processExpires();
+            } finally {
+                expiring.set(false);
+            }
+        }
+
+        /**
+         * One run of a deadline queue on the scheduler. A wake-up that comes
+         * while another run is in progress makes that run go round again, so
+         * that it is not lost. The run then schedules the next wake-up.
+         */
+        private void runScheduledDeadlines() {
+            synchronized (wakeLock) {
+                wakeAt = Long.MAX_VALUE;
+            }
+
+            boolean ran = false;
+            missedRun.set(true);
+            while (missedRun.get() && expiring.compareAndSet(false, true)) {
+                ran = true;
+                try {
+                    missedRun.set(false);
+                    processExpires();
+                } finally {
+                    expiring.set(false);
+                }
+            }
+
+            if (ran) {
+                scheduleWakeup();
+            }
+        }
+
+        /**
+         * Sleep until the next deadline, or until woken if the queue is empty.
+         */
+        private void parkUntilNextDeadline() {
+            long next = deadlineQueue.nextDeadline();
+            if (next == Long.MAX_VALUE) {
+                LockSupport.park(this);
+                return;
+            }
+
+            long wait = next - System.currentTimeMillis();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+            }
+        }
+
+        /**
+         * Called when a put makes an object the next to expire.
+         */
+        private void onEarlierDeadline() {
+            if (!running) {
+                return;
+            }
+
+            if (scheduler == null) {
+                Thread thread = expirerThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            } else {
+                scheduleWakeup();
+            }
+        }
+
+        /**
+         * Make sure a run of the deadline queue is scheduled for its next
+         * deadline.
+         */
+        private void scheduleWakeup() {
+            synchronized (wakeLock) {
+                long next = deadlineQueue.nextDeadline();
+                if (!running || next >= wakeAt) {
+                    return;
+                }
+
+                if (scheduledTask != null) {
+                    scheduledTask.cancel(false);
+                }
+                wakeAt = next;
+                scheduledTask = scheduler.scheduleOnce(this::runScheduled,
+                        Math.max(0, next - System.currentTimeMillis()));
+            }
+        }
+
+        /**
+         * Must hold the state write lock.
+         */
+        private void startLocked() {
+            running = true;
+
+            // Nothing is scheduled while the expirer is stopped.
+            for (ExpiringObject o: delegate.values()) {
+                schedule(o);
+            }
+
+            if (scheduler != null && deadlineQueue != null) {
+                scheduleWakeup();
+                return;
+            }
+
+            if (scheduler != null) {
+                scheduledTask = scheduler.schedule(this::runScheduled,
+                        Math.max(1, expirationIntervalMillis));
+                return;
+            }
+
+            Thread thread = new Thread(this, "ExpiringMapExpirer-"
+                    + expirerCount++);
+            thread.setDaemon(true);
+            expirerThread = thread;
+            thread.start();
+        }
+
+        /**
+         * Must hold the state write lock.
+         */
+        private void stopLocked() {
+            running = false;
+            clearSchedule();
+
+            synchronized (wakeLock) {
+                if (scheduledTask != null) {
+                    scheduledTask.cancel(false);
+                    scheduledTask = null;
+                }
+                wakeAt = Long.MAX_VALUE;
+            }
+
+            Thread thread = expirerThread;
+            if (thread != null) {
+                expirerThread = null;
+                thread.interrupt();
+            }
+        }
+
         private void processExpires() {
+            StatsCounter s = stats;
+            long start = s.startTimer();
+
+            if (timingWheel != null) {
+                processWheelExpires();
+            } else if (deadlineQueue != null) {
+                processDeadlineExpires();
+            } else {
+                processScanExpires();
+            }
+
+            s.recordScanTime(start);
+        }
+
+        private void processScanExpires() {
             long timeNow = System.currentTimeMillis();
 
             for (ExpiringObject o: delegate.values()) {
+                if (getDeadline(o) <= timeNow) {
+                    expire(o);
+                }
+            }
+        }
+
+        private void processWheelExpires() {
+            long timeNow = System.currentTimeMillis();
+            List<ExpiringObject> due = timingWheel.advance(timeNow);
 
-                if (timeToLiveMillis <= 0) {
+            for (ExpiringObject o: due) {
+                // Already removed or replaced.
+                if (delegate.get(o.getKey()) != o) {
                     continue;
                 }
 
-                long timeIdle = timeNow - o.getLastAccessTime();
+                o.timerNode = null;
+                if (getDeadline(o) <= timeNow) {
+                    expire(o);
+                } else {
+                    // Accessed since it was scheduled.
+                    schedule(o);
+                }
+            }
+        }
 
-                if (timeIdle >= timeToLiveMillis) {
-                    delegate.remove(o.getKey());
+        private void processDeadlineExpires() {
+            long timeNow = System.currentTimeMillis();
 
-                    for (ExpirationListener<V> listener: expirationListeners) {
-                        listener.expired(o.getValue());
-                    }
+            for (ExpiringObject o: deadlineQueue.pollDue(timeNow)) {
+                // Already removed or replaced.
+                if (delegate.get(o.getKey()) != o) {
+                    continue;
+                }
+
+                o.timerNode = null;
+                if (getDeadline(o) <= timeNow) {
+                    expire(o);
+                } else {
+                    // Accessed since it was scheduled.
+                    schedule(o);
+                }
+            }
+        }
+
+        private void expire(ExpiringObject o) {
+            if (!removeObject(o)) {
+                return;
+            }
+
+            stats.recordExpiration();
+            notifyListeners(o, RemovalCause.EXPIRED);
+        }
+
+        private long getDeadline(ExpiringObject o) {
+            long ttl = o.getTimeToLiveMillis();
+            if (ttl == DEFAULT_TIME_TO_LIVE_MILLIS) {
+                ttl = timeToLiveMillis;
+            }
+            if (ttl <= 0) {
+                return Long.MAX_VALUE;
+            }
+
+            if (expirationPolicy == ExpirationPolicy.CREATED) {
+                return o.getCreationTime() + ttl;
+            }
+            return o.getLastAccessTime() + ttl;
+        }
+
+        /**
+         * Add the object to the timing wheel or deadline queue. Does nothing
+         * while the expirer is stopped; every object is scheduled when it
+         * starts.
+         */
+        void schedule(ExpiringObject o) {
+            if (!running) {
+                return;
+            }
+
+            if (timingWheel != null) {
+                o.timerNode = timingWheel.schedule(o);
+            } else if (deadlineQueue != null) {
+                o.timerNode = deadlineQueue.schedule(o);
+            }
+        }
+
+        /**
+         * Take a removed or replaced object out of the timing wheel or
+         * deadline queue, so that it does not wait there for its deadline.
+         */
+        @SuppressWarnings("unchecked")
+        void unschedule(ExpiringObject o) {
+            Object node = o.timerNode;
+            if (node == null || !running) {
+                return;
+            }
+
+            o.timerNode = null;
+            if (timingWheel != null) {
+                timingWheel.cancel((TimingWheel.Node<ExpiringObject>) node);
+            } else if (deadlineQueue != null) {
+                deadlineQueue.cancel((DeadlineQueue.Entry<ExpiringObject>) node);
+            }
+        }
+
+        void clearSchedule() {
+            if (timingWheel != null) {
+                timingWheel.clear();
+            } else if (deadlineQueue != null) {
+                deadlineQueue.clear();
+            }
+        }
+
+        /**
+         * Every deadline has moved.
+         */
+        private void rescheduleAll() {
+            if (timingWheel != null) {
+                timingWheel.rescheduleAll();
+            } else if (deadlineQueue != null) {
+                // Objects that never expired were not queued, so start again
+                // from the map. An object queued twice is only expired once.
+                deadlineQueue.clear();
+                for (ExpiringObject o: delegate.values()) {
+                    schedule(o);
                 }
             }
         }
 
+        /**
+         * @return The time (milliseconds) to count a new object's
+         *  time-to-live from. A deadline queue can expire an object within a
+         *  millisecond of its deadline, so it uses the exact time rather
+         *  than the coarse clock.
+         */
+        long currentTimeMillis() {
+            return deadlineQueue != null
+                    ? System.currentTimeMillis()
+                    : CoarseClock.currentTimeMillis();
+        }
+
+        /**
+         * @return How this expirer finds the objects that should be removed.
+         */
+        public ExpirationStrategy getExpirationStrategy() {
+            return expirationStrategy;
+        }
+
+        /**
+         * @return What the time-to-live is counted from.
+         */
+        public ExpirationPolicy getExpirationPolicy() {
+            return expirationPolicy;
+        }
+
+        /**
+         * Change what the time-to-live is counted from. Applies to objects
+         * already in the map.
+         */
+        public void setExpirationPolicy(ExpirationPolicy expirationPolicy) {
+            if (expirationPolicy == null) {
+                throw new IllegalArgumentException("Expiration policy cannot be null.");
+            }
+
+            this.expirationPolicy = expirationPolicy;
+            rescheduleAll();
+        }
+
         /**
          * Kick off this thread which will look for old objects and remove them.
          *
@@ -364,8 +1709,7 @@ public class ExpiringMap<K, V> implements Map<K, V> {
 
             try {
                 if (!running) {
-                    running = true;
-                    expirerThread.start();
+                    startLocked();
                 }
             } finally {
                 stateLock.writeLock().unlock();
@@ -389,8 +1733,7 @@ public class ExpiringMap<K, V> implements Map<K, V> {
             stateLock.writeLock().lock();
             try {
                 if (!running) {
-                    running = true;
-                    expirerThread.start();
+                    startLocked();
                 }
             } finally {
                 stateLock.writeLock().unlock();
@@ -398,19 +1741,21 @@ public class ExpiringMap<K, V> implements Map<K, V> {
         }
 
         /**
-         * Stop the thread from monitoring the map.
+         * Stop the thread from monitoring the map, and unregister the map's
+         * MXBean.
          */
         public void stopExpiring() {
             stateLock.writeLock().lock();
 
             try {
                 if (running) {
-                    running = false;
-                    expirerThread.interrupt();
+                    stopLocked();
                 }
             } finally {
                 stateLock.writeLock().unlock();
             }
+
+            unregisterMBean();
         }
 
         /**
@@ -452,13 +1797,42 @@ public class ExpiringMap<K, V> implements Map<K, V> {
          *  The time-to-live (seconds)
          */
         public void setTimeToLive(long timeToLive) {
+            setTimeToLive(timeToLive, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Returns the Time-to-live value.
+         *
+         * @return
+         *  The time-to-live, truncated to the unit
+         */
+        public long getTimeToLive(TimeUnit unit) {
+            stateLock.readLock().lock();
+
+            try {
+                return unit.convert(timeToLiveMillis, TimeUnit.MILLISECONDS);
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Update the value for the time-to-live. Times finer than a
+         * millisecond are rounded up.
+         *
+         * @param timeToLive
+         *  The time-to-live. Zero or less means objects never expire.
+         */
+        public void setTimeToLive(long timeToLive, TimeUnit unit) {
             stateLock.writeLock().lock();
 
             try {
-                this.timeToLiveMillis = timeToLive * 1000;
+                this.timeToLiveMillis = toMillisRoundedUp(timeToLive, unit);
             } finally {
                 stateLock.writeLock().unlock();
             }
+
+            rescheduleAll();
         }
 
         /**
@@ -486,13 +1860,51 @@ public class ExpiringMap<K, V> implements Map<K, V> {
          *  The time in seconds
          */
         public void setExpirationInterval(long expirationInterval) {
+            setExpirationInterval(expirationInterval, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Get the time between runs of the expirer.
+         *
+         * @return
+         *  The interval, truncated to the unit
+         */
+        public long getExpirationInterval(TimeUnit unit) {
+            stateLock.readLock().lock();
+
+            try {
+                return unit.convert(expirationIntervalMillis, TimeUnit.MILLISECONDS);
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Set the time between runs of the expirer. Times finer than a
+         * millisecond are rounded up. Not used by
+         * {@link ExpirationStrategy#DEADLINE_QUEUE}.
+         */
+        public void setExpirationInterval(long expirationInterval, TimeUnit unit) {
+            long intervalMillis = toMillisRoundedUp(expirationInterval, unit);
+
             stateLock.writeLock().lock();
 
             try {
-                this.expirationIntervalMillis = expirationInterval * 1000;
+                this.expirationIntervalMillis = intervalMillis;
+
+                // Pick up the new interval on the scheduler.
+                if (running && scheduler != null && deadlineQueue == null) {
+                    stopLocked();
+                    startLocked();
+                }
             } finally {
                 stateLock.writeLock().unlock();
             }
+
+            // The wheel turns once per run of the expirer.
+            if (timingWheel != null && intervalMillis > 0) {
+                timingWheel.setTickMillis(intervalMillis, System.currentTimeMillis());
+            }
         }
     }
 }
@@ -0,0 +1,38 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * JMX view of an {@link ExpiringMap}'s statistics.
+ *
+ * @see ExpiringMap#registerMBean(String)
+ */
+public interface ExpiringMapMXBean {
+    int getSize();
+
+    boolean isStatisticsEnabled();
+
+    void setStatisticsEnabled(boolean enabled);
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getPutCount();
+
+    long getExpirationCount();
+
+    long getEvictionCount();
+
+    long getScanCount();
+
+    double getScanTimeMeanMillis();
+
+    double getScanTime99thPercentileMillis();
+
+    long getListenerCallCount();
+
+    double getListenerTimeMeanMillis();
+
+    double getListenerTime99thPercentileMillis();
+}
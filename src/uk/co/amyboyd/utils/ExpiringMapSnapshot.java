@@ -0,0 +1,269 @@
+package uk.co.amyboyd.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Saves the entries of an {@link ExpiringMap} to a file, with their
+ * deadlines, and restores them after a restart so the map starts warm.
+ *
+ * <p>Writing walks the map with its weakly consistent iterator, so readers
+ * and writers of the map are never paused; entries changed during the walk
+ * may or may not be included. Entries are streamed to a temporary file
+ * which replaces the snapshot atomically when it is complete.
+ *
+ * <p>Restoring maps the file into memory a window at a time and puts every
+ * entry whose deadline has not passed, so that it expires when it would
+ * have done had the process not restarted.
+ *
+ * <p>The format is a header (magic, version, time written) followed by
+ * records of key length, key bytes, value length, value bytes, the entry's
+ * own time-to-live (-1 if it used the map's) and its deadline, then -1 and
+ * the number of records.
+ */
+public final class ExpiringMapSnapshot {
+    private static final int MAGIC = 0x45584d53;
+
+    private static final int VERSION = 1;
+
+    private static final int END_OF_ENTRIES = -1;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final long READ_WINDOW_SIZE = 64L << 20;
+
+    /**
+     * Receives each entry of a map being saved.
+     */
+    interface EntryVisitor<K, V> {
+        void visit(K key, V value, long ownTimeToLiveMillis, long deadline) throws IOException;
+    }
+
+    private ExpiringMapSnapshot() {
+    }
+
+    /**
+     * Save the map's entries to the file, replacing it.
+     *
+     * @return The number of entries saved.
+     * @throws IOException if the file could not be written, or an entry
+     *  could not be serialized. The previous snapshot is left in place.
+     */
+    public static <K, V> long write(final ExpiringMap<K, V> map, final File file,
+            final Serializer<? super K> keySerializer, final Serializer<? super V> valueSerializer)
+            throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final long timeNow = System.currentTimeMillis();
+        final long[] count = {0};
+
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(timeNow);
+
+            map.visitEntries((key, value, ownTimeToLiveMillis, deadline) -> {
+                if (deadline <= timeNow) {
+                    return;
+                }
+
+                final byte[] k = keySerializer.serialize(key);
+                final byte[] v = valueSerializer.serialize(value);
+                final ByteBuffer out = ensureSpace(channel, buffer, 4 + k.length + 4 + v.length + 16);
+                out.putInt(k.length).put(k)
+                        .putInt(v.length).put(v)
+                        .putLong(ownTimeToLiveMillis)
+                        .putLong(deadline);
+                if (out != buffer) {
+                    writeFully(channel, out);
+                }
+                count[0]++;
+            });
+
+            ensureSpace(channel, buffer, 12);
+            buffer.putInt(END_OF_ENTRIES).putLong(count[0]);
+            writeFully(channel, buffer);
+            channel.force(true);
+        } catch (final IOException | RuntimeException ex) {
+            temp.delete();
+            throw ex;
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * {@link #write} on the executor.
+     *
+     * @return The number of entries saved; completes exceptionally with an
+     *  UncheckedIOException if the snapshot could not be written.
+     */
+    public static <K, V> CompletableFuture<Long> writeAsync(final ExpiringMap<K, V> map,
+            final File file, final Serializer<? super K> keySerializer,
+            final Serializer<? super V> valueSerializer, final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return write(map, file, keySerializer, valueSerializer);
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Put every entry from the snapshot into the map, except those whose
+     * deadline has passed. If the file does not exist, nothing is restored.
+     *
+     * @return The number of entries restored.
+     * @throws IOException if the file is not a complete snapshot, or an entry
+     *  could not be deserialized. Entries before the problem are kept.
+     */
+    public static <K, V> long restore(final ExpiringMap<K, V> map, final File file,
+            final Serializer<? extends K> keySerializer, final Serializer<? extends V> valueSerializer)
+            throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedReader in = new MappedReader(channel);
+
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + file.getAbsolutePath());
+            }
+            final int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": "
+                        + file.getAbsolutePath());
+            }
+            in.getLong();
+
+            final long timeNow = System.currentTimeMillis();
+            long read = 0;
+            long restored = 0;
+
+            while (true) {
+                final int keyLength = in.getInt();
+                if (keyLength == END_OF_ENTRIES) {
+                    break;
+                }
+
+                final byte[] k = in.getBytes(keyLength);
+                final byte[] v = in.getBytes(in.getInt());
+                final long ownTimeToLiveMillis = in.getLong();
+                final long deadline = in.getLong();
+                read++;
+
+                if (deadline <= timeNow) {
+                    continue;
+                }
+
+                map.putRestored(keySerializer.deserialize(k), valueSerializer.deserialize(v),
+                        ownTimeToLiveMillis, deadline);
+                restored++;
+            }
+
+            if (in.getLong() != read) {
+                throw new IOException("Corrupt snapshot: " + file.getAbsolutePath());
+            }
+
+            return restored;
+        }
+    }
+
+    /**
+     * @return The buffer to put the next n bytes in: the shared buffer
+     *  (flushed first if needed), or a one-off buffer for an entry larger
+     *  than it, which the caller must write.
+     */
+    private static ByteBuffer ensureSpace(final FileChannel channel, final ByteBuffer buffer,
+            final int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return buffer;
+        }
+
+        writeFully(channel, buffer);
+        if (buffer.remaining() >= n) {
+            return buffer;
+        }
+        return ByteBuffer.allocate(n);
+    }
+
+    /**
+     * Write everything put in the buffer, and clear it.
+     */
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads a file through a read-only mapping that slides forward, so files
+     * larger than 2 GB can be read.
+     */
+    private static final class MappedReader {
+        final private FileChannel channel;
+
+        final private long size;
+
+        private long windowStart = 0;
+
+        private MappedByteBuffer window;
+
+        MappedReader(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, READ_WINDOW_SIZE));
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        byte[] getBytes(final int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot: negative length");
+            }
+
+            ensure(length);
+            final byte[] bytes = new byte[length];
+            window.get(bytes);
+            return bytes;
+        }
+
+        private void ensure(final int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            }
+
+            windowStart += window.position();
+            if (size - windowStart < n) {
+                throw new EOFException("Truncated snapshot");
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(size - windowStart, Math.max(READ_WINDOW_SIZE, n)));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * An immutable snapshot of the statistics of an {@link ExpiringMap}.
+ *
+ * @see ExpiringMap#setStatisticsEnabled(boolean)
+ */
+public final class ExpiringMapStats {
+    static final ExpiringMapStats EMPTY = new ExpiringMapStats(0, 0, 0, 0, 0,
+            Histogram.EMPTY, Histogram.EMPTY);
+
+    final private long hitCount;
+
+    final private long missCount;
+
+    final private long putCount;
+
+    final private long expirationCount;
+
+    final private long evictionCount;
+
+    final private Histogram scanTime;
+
+    final private Histogram listenerTime;
+
+    ExpiringMapStats(final long hitCount, final long missCount, final long putCount,
+            final long expirationCount, final long evictionCount,
+            final Histogram scanTime, final Histogram listenerTime) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.expirationCount = expirationCount;
+        this.evictionCount = evictionCount;
+        this.scanTime = scanTime;
+        this.listenerTime = listenerTime;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return Hits divided by requests, or 1 if there have been no requests.
+     */
+    public double getHitRate() {
+        final long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return Entries removed because their time-to-live passed.
+     */
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return Entries removed because the map was over its maximum size or weight.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return How long each run of the expirer took.
+     */
+    public Histogram getScanTime() {
+        return scanTime;
+    }
+
+    /**
+     * @return How long each expiration listener call took.
+     */
+    public Histogram getListenerTime() {
+        return listenerTime;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiringMapStats [hitCount=" + hitCount + ", missCount=" + missCount
+                + ", putCount=" + putCount + ", expirationCount=" + expirationCount
+                + ", evictionCount=" + evictionCount + ", scanTime=" + scanTime
+                + ", listenerTime=" + listenerTime + "]";
+    }
+
+    /**
+     * A histogram of durations, in power-of-two nanosecond buckets: bucket i
+     * counts durations from 2^(i-1) up to (but not including) 2^i nanoseconds.
+     */
+    public static final class Histogram {
+        static final Histogram EMPTY = new Histogram(new long[64], 0);
+
+        final private long[] buckets;
+
+        final private long count;
+
+        final private long totalNanos;
+
+        Histogram(final long[] buckets, final long totalNanos) {
+            long c = 0;
+            for (final long b: buckets) {
+                c += b;
+            }
+
+            this.buckets = buckets;
+            this.count = c;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        /**
+         * @param percentile From 0 to 100.
+         * @return An upper bound for the percentile (nanoseconds), accurate to
+         *  a factor of two, or 0 if there are no samples.
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            final long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return i >= 63 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * @return A copy of the bucket counts.
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "[count=" + count + ", meanNanos=" + (long) getMeanNanos()
+                    + ", p99Nanos=" + getPercentileNanos(99) + "]";
+        }
+    }
+}
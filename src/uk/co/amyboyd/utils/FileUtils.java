@@ -2,17 +2,53 @@ package uk.co.amyboyd.utils;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * File, URL and IO utilities.
  */
 final public class FileUtils {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How much is transferred between progress reports.
+     */
+    private static final long PROGRESS_CHUNK_SIZE = 8L << 20;
+
+    /**
+     * How much of a file is mapped into memory at a time.
+     */
+    private static final long MAP_WINDOW_SIZE = 64L << 20;
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>();
+
     private FileUtils() {
     }
 
@@ -38,11 +74,7 @@ final public class FileUtils {
             in = source.openStream();
             out = new FileOutputStream(destination, append);
 
-            byte[] buf = new byte[10000];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
+            copy(in, out, null);
         } catch (final IOException ex) {
             Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, "Exception copying URL to file: " + ex.
                     getMessage(), ex);
@@ -63,6 +95,48 @@ final public class FileUtils {
         }
     }
 
+    /**
+     * Copy many URLs to files at once, with the default settings of {@link BulkDownloader}.
+     * Existing files are overwritten.
+     *
+     * @return What happened to each URL, in the order of the map.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static List<DownloadResult> copy(final Map<URL, File> downloads) throws InterruptedException {
+        return new BulkDownloader().download(downloads);
+    }
+
+    /**
+     * Download a URL to a file, resuming an earlier attempt if there is one.
+     *
+     * @see #download(URL, File, int, ProgressListener)
+     */
+    public static TransferProgress download(final URL source, final File destination, final int segments)
+            throws IOException {
+        return download(source, destination, segments, null);
+    }
+
+    /**
+     * Download a URL to a file with HTTP Range requests, in up to <tt>segments</tt> parallel
+     * parts (at least 1 MB each) written straight to their place in the file.
+     *
+     * <p>Unlike {@link #copy(URL, File, boolean)}, a failed download is not thrown away. The
+     * data so far is kept in "destination.part" and its progress in "destination.part.state";
+     * calling this again resumes it, if the server still has the same version of the object.
+     * The finished file is checked against the server's Digest or Content-MD5 header, if it
+     * sent one, before it replaces the destination.
+     *
+     * <p>Servers that do not support ranges are downloaded in one piece.
+     *
+     * @param listener Told the progress every 8 MB, or null.
+     * @return The bytes downloaded by this call, and how long it took.
+     * @throws IOException if the download failed. It can be resumed.
+     */
+    public static TransferProgress download(final URL source, final File destination, final int segments,
+            final ProgressListener listener) throws IOException {
+        return new RangedDownload(source, destination, listener).run(segments);
+    }
+
     /**
      * Copy the content of one file to another.
      *
@@ -72,67 +146,362 @@ final public class FileUtils {
      */
     public static void copy(final File source, final File destination, final boolean append)
             throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
+        copy(source, destination, append, null);
+    }
 
-        try {
-            in = new FileInputStream(source);
-            out = new FileOutputStream(destination, append);
+    /**
+     * Copy the content of one file to another, without passing it through
+     * the heap: the kernel copies it directly where it can (sendfile or
+     * copy_file_range on Linux).
+     *
+     * Optionally the source can be appended to the destination file.
+     *
+     * @param listener Told the progress every 8 MB, or null.
+     * @return The bytes copied and how long it took.
+     * @throws IOException
+     */
+    public static TransferProgress copy(final File source, final File destination,
+            final boolean append, final ProgressListener listener) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = append
+                        ? FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                        : FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return transfer(in, out, listener);
+        } catch (final IOException ex) {
+            Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
+            destination.delete();
 
-            byte[] buf = new byte[10000];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
+            throw ex;
+        }
+    }
+
+    /**
+     * Copy the content of one file to another, computing digests of it on
+     * the way, so that the copy need not be read again to check it. The
+     * source is read once, through a memory mapping, and the same bytes are
+     * digested and written.
+     *
+     * @param algorithms e.g. "SHA-256" or "MD5" (see
+     *  {@link java.security.MessageDigest}), or "CRC32" or "CRC32C".
+     * @return The digests of the copy.
+     * @throws IOException if either file could not be read or written. The
+     *  destination is deleted.
+     */
+    public static Digests copyDigesting(final File source, final File destination, final String... algorithms)
+            throws IOException {
+        return copyDigesting(source, destination, new Digester(Arrays.asList(algorithms)), null);
+    }
+
+    /**
+     * Copy the content of one file to another, and check that the copy has
+     * the expected digests.
+     *
+     * @param expected Each algorithm, as for
+     *  {@link #copyDigesting(File, File, String...)}, and its digest in hex.
+     * @return The digests of the copy.
+     * @throws IOException if either file could not be read or written, or a
+     *  digest does not match. The destination is deleted.
+     * @throws IllegalArgumentException if an expected digest is not hex. The
+     *  destination is not touched.
+     */
+    public static Digests copyVerified(final File source, final File destination,
+            final Map<String, String> expected) throws IOException {
+        Digests.checkHex(expected);
+        return copyDigesting(source, destination, new Digester(expected.keySet()), expected);
+    }
+
+    private static Digests copyDigesting(final File source, final File destination, final Digester digester,
+            final Map<String, String> expected) throws IOException {
+        final long start = System.nanoTime();
+        final Digests digests;
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            long position = 0;
+
+            while (position < size) {
+                final MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, MAP_WINDOW_SIZE));
+                digester.update(window);
+                while (window.hasRemaining()) {
+                    out.write(window);
+                }
+                position += window.capacity();
             }
+
+            digests = digester.finish(System.nanoTime() - start);
         } catch (final IOException ex) {
             Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
             destination.delete();
 
             throw ex;
-        } finally {
-            try {
-                if (in != null) {
-                    in.close();
-                }
-                if (out != null) {
-                    out.close();
-                }
-            } catch (final IOException ex) {
-                Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        verify(digests, expected, destination);
+        return digests;
+    }
+
+    /**
+     * Check the digests of a file just written, if there are any to check,
+     * and delete it if they do not match.
+     */
+    private static void verify(final Digests digests, final Map<String, String> expected, final File file)
+            throws IOException {
+        if (expected == null) {
+            return;
+        }
+
+        try {
+            digests.verify(expected);
+        } catch (final IOException | RuntimeException ex) {
+            // Never leave an unverified file behind.
+            Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, file + ": " + ex.getMessage());
+            file.delete();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Copy a directory tree to another, in parallel, skipping the files
+     * whose size and modification time have not changed.
+     *
+     * @return What was copied, and the files that could not be.
+     * @throws IOException if the source cannot be walked or the target
+     *  cannot be created.
+     * @see DirectorySync for incremental and mirroring syncs.
+     */
+    public static SyncResult copyTree(final File source, final File target) throws IOException {
+        return new DirectorySync().sync(source, target);
+    }
+
+    /**
+     * Copy everything left in a stream to another. File streams are copied
+     * by the kernel, like {@link #copy(File, File, boolean, ProgressListener)};
+     * other streams through a 64 KB buffer. Neither stream is closed.
+     *
+     * @param listener Told the progress every 8 MB, or null.
+     * @return The bytes copied and how long it took.
+     * @throws IOException
+     */
+    public static TransferProgress copy(final InputStream in, final OutputStream out,
+            final ProgressListener listener) throws IOException {
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            return transfer(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel(), listener);
+        }
+
+        final long start = System.nanoTime();
+        final byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        long done = 0;
+        long nextReport = PROGRESS_CHUNK_SIZE;
+        int len;
+
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            done += len;
+
+            if (listener != null && done >= nextReport) {
+                listener.progress(new TransferProgress(done, -1, System.nanoTime() - start));
+                nextReport = done + PROGRESS_CHUNK_SIZE;
+            }
+        }
+
+        final TransferProgress progress = new TransferProgress(done, done, System.nanoTime() - start);
+        if (listener != null) {
+            listener.progress(progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Transfer the rest of a file channel, from its position, to another
+     * channel, and leave the file's position at the end.
+     */
+    private static TransferProgress transfer(final FileChannel in, final WritableByteChannel out,
+            final ProgressListener listener) throws IOException {
+        final long start = System.nanoTime();
+        final long size = in.size();
+        final long first = in.position();
+        final long total = Math.max(0, size - first);
+
+        // Large chunks unless someone wants to hear about them; transferTo
+        // is limited to 2 GB a call anyway.
+        final long chunk = listener == null ? Integer.MAX_VALUE : PROGRESS_CHUNK_SIZE;
+        long position = first;
+
+        while (position < size) {
+            final long n = in.transferTo(position, Math.min(chunk, size - position), out);
+            if (n <= 0) {
+                // The source was truncated while we copied it.
+                break;
             }
+            position += n;
+
+            if (listener != null && position < size) {
+                listener.progress(new TransferProgress(position - first, total,
+                        System.nanoTime() - start));
+            }
+        }
+        in.position(position);
+
+        final TransferProgress progress = new TransferProgress(position - first, total,
+                System.nanoTime() - start);
+        if (listener != null) {
+            listener.progress(progress);
         }
+        return progress;
     }
 
     /**
-     * Write to a file.
+     * Write to a file, in UTF-8.
      *
-     * Optionally the source can be appended to the destination file.
+     * Optionally the source can be appended to the destination file. If the
+     * write fails and the source was not being appended, the destination is
+     * deleted; {@link #writeAtomically(CharSequence, File, Charset)} leaves
+     * it as it was instead.
      *
      * @throws IOException
      */
     public static void write(final String source, final File destination, final boolean append)
             throws IOException {
-        OutputStream out = null;
+        try (FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            encode(source, StandardCharsets.UTF_8, out);
+        } catch (final IOException ex) {
+            Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
+            if (!append) {
+                destination.delete();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Replace a file's content, so that after a crash or a failure it has
+     * either its old content or all of the new. The text is written to a
+     * temporary file in the same directory, forced to disk, and renamed over
+     * the destination. An existing destination keeps its permissions, and
+     * its owner and group where this process may set them.
+     *
+     * @throws IOException if the file could not be written. The destination
+     *  is left as it was.
+     */
+    public static void writeAtomically(final CharSequence source, final File destination, final Charset charset)
+            throws IOException {
+        final File dir = destination.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile("." + destination.getName() + ".", ".tmp", dir);
 
         try {
-            out = new FileOutputStream(destination, append);
-            out.write(source.getBytes("UTF-8"));
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                encode(source, charset, out);
+                out.force(true);
+            }
+            copyAttributes(destination, temp);
+            Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(dir);
         } catch (final IOException ex) {
             Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
-            destination.delete();
 
             throw ex;
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Encode text straight into a channel, a buffer at a time, with this
+     * thread's encoder. Malformed text is replaced, as by
+     * {@link String#getBytes(Charset)}.
+     */
+    private static void encode(final CharSequence source, final Charset charset, final WritableByteChannel out)
+            throws IOException {
+        CharsetEncoder encoder = ENCODER.get();
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ENCODER.set(encoder);
+        }
+        // Pooled rather than per thread, so idle threads do not pin native memory.
+        final ByteBuffer buffer = ZlibPool.buffer();
+        final CharBuffer in = CharBuffer.wrap(source);
+
+        encoder.reset();
+        try {
+            while (encoder.encode(in, buffer, true).isOverflow()) {
+                drain(buffer, out);
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                drain(buffer, out);
+            }
+            drain(buffer, out);
+        } finally {
+            ZlibPool.release(buffer);
+        }
+    }
+
+    private static void drain(final ByteBuffer buffer, final WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Make a rename in a directory durable. Not every platform can open a
+     * directory, so failures are ignored.
+     */
+    static void forceDirectory(final File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException ex) {
+            Logger.getLogger(FileUtils.class.getName()).log(Level.FINE, "Cannot force directory " + dir, ex);
+        }
+    }
+
+    /**
+     * Give a file that is about to be renamed over another the other's
+     * permissions (or ACL), and its owner and group where this process may
+     * set them. Does nothing if the original does not exist. Hard links to
+     * the original cannot be carried over.
+     */
+    static void copyAttributes(final File original, final File replacement) throws IOException {
+        final PosixFileAttributeView posix = Files.getFileAttributeView(replacement.toPath(),
+                PosixFileAttributeView.class);
+        final AclFileAttributeView acl = Files.getFileAttributeView(replacement.toPath(),
+                AclFileAttributeView.class);
+
+        try {
+            if (posix != null) {
+                final PosixFileAttributes attributes = Files.readAttributes(original.toPath(),
+                        PosixFileAttributes.class);
+                try {
+                    posix.setGroup(attributes.group());
+                    posix.setOwner(attributes.owner());
+                } catch (final IOException ex) {
+                    Logger.getLogger(FileUtils.class.getName()).log(Level.FINE,
+                            "Cannot give " + replacement + " the owner of " + original, ex);
                 }
-            } catch (final IOException ex) {
-                Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
+                // After the owner, which may clear the set-id bits.
+                posix.setPermissions(attributes.permissions());
+            } else if (acl != null) {
+                acl.setAcl(Files.getFileAttributeView(original.toPath(), AclFileAttributeView.class).getAcl());
             }
+        } catch (final NoSuchFileException ex) {
+            // Nothing to copy.
         }
     }
 
+
     /**
      * Read the content of a URL to a string.
      *
@@ -153,6 +522,18 @@ final public class FileUtils {
         return response.toString();
     }
 
+    /**
+     * Read a URL through a cache, so that it is only downloaded again if it
+     * has changed. Unlike {@link #read(URL)}, newlines are kept and the text
+     * is decoded with the charset the server gives.
+     *
+     * @return The content of the URL.
+     * @throws IOException if the URL cannot be read.
+     */
+    public static String read(final URL source, final HttpResponseCache cache) throws IOException {
+        return cache.read(source);
+    }
+
     /**
      * @link http://stackoverflow.com/questions/326390/how-to-create-a-java-string-from-the-contents-of-a-file
      *
@@ -172,10 +553,92 @@ final public class FileUtils {
         }
     }
 
+    /**
+     * Read a file of any size a chunk at a time, in constant memory.
+     * Malformed input is replaced, as by {@link String#String(byte[], Charset)}.
+     *
+     * @return The number of chars read.
+     * @throws IOException if there is a file-system error, or the visitor throws.
+     */
+    public static long read(final File source, final Charset charset, final CharSequenceVisitor visitor)
+            throws IOException {
+        return read(source, replacingDecoder(charset), visitor);
+    }
+
+    /**
+     * Read a file of any size a chunk at a time, in constant memory. The file
+     * is mapped into memory a window at a time and decoded as it goes.
+     *
+     * @param decoder Decides what to do with malformed input.
+     * @return The number of chars read.
+     * @throws IOException if there is a file-system error, the file is not
+     *  valid and the decoder reports errors, or the visitor throws.
+     */
+    public static long read(final File source, final CharsetDecoder decoder,
+            final CharSequenceVisitor visitor) throws IOException {
+        try (MappedTextReader reader = new MappedTextReader(source, decoder)) {
+            return reader.visit(visitor);
+        }
+    }
+
+    /**
+     * The lines of a file of any size, read in constant memory. Malformed
+     * input is replaced.
+     *
+     * @see #lines(File, CharsetDecoder)
+     */
+    public static Stream<String> lines(final File source, final Charset charset) throws IOException {
+        return lines(source, replacingDecoder(charset));
+    }
+
+    /**
+     * Index the lines of a file, so that any line or range of lines can be
+     * read without reading the rest of the file.
+     *
+     * @see LineIndex#open(File, Charset, File) to save the index beside the file.
+     * @throws IOException if there is a file-system error.
+     */
+    public static LineIndex indexLines(final File source, final Charset charset) throws IOException {
+        return LineIndex.build(source, charset);
+    }
+
+    /**
+     * The lines of a file of any size, without their terminators ("\n",
+     * "\r\n" or "\r"). The file is mapped into memory a window at a time and
+     * decoded as the stream is consumed.
+     *
+     * <p>The stream must be closed, e.g. with try-with-resources. Errors while
+     * reading are thrown as UncheckedIOException.
+     *
+     * @param decoder Decides what to do with malformed input.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static Stream<String> lines(final File source, final CharsetDecoder decoder) throws IOException {
+        final MappedTextReader reader = new MappedTextReader(source, decoder);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader.lines(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (final IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+    }
+
+    private static CharsetDecoder replacingDecoder(final Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
     /**
      * Change every occurence of <tt>replace</tt> to <tt>with</tt> in a file's content, then overwrite the file.
+     * The file is read in the default charset.
      *
      * @throws IOException if the file does not exist.
+     * @see #replaceLiteralInFile(File, String, String, Charset)
      */
     public static void replaceLiteralInFile(final File file, final String replace, final String with)
             throws IOException {
@@ -184,23 +647,60 @@ final public class FileUtils {
         }
 
         try {
-            final BufferedReader reader = new BufferedReader(new FileReader(file));
-            final StringBuffer oldText = new StringBuffer((int) file.length());
-            String line = "";
-
-            while ((line = reader.readLine()) != null) {
-                oldText.append(line).append("\n");
-            }
-            reader.close();
-
-            final FileWriter writer = new FileWriter(file);
-            writer.write(oldText.toString().replace(replace, with));
-            writer.close();
+            replaceLiteralInFile(file, replace, with, Charset.defaultCharset());
         } catch (final IOException ex) {
             Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
+    /**
+     * Change every occurence of <tt>replace</tt> to <tt>with</tt> in a file's content, in one
+     * streaming pass. Everything else, including line endings, is kept byte for byte. The
+     * new content is written to a temporary file which replaces the original atomically; if
+     * there is nothing to replace, the file is not touched.
+     *
+     * <p>The new file is given the original's permissions, and its owner and group where
+     * this process may set them. It is a new file, though: other hard links to the original
+     * keep the old content.
+     *
+     * <p>The search is on the encoded bytes, so the charset must be one in which no
+     * character's encoding appears inside another's, such as UTF-8 or ISO-8859-1.
+     *
+     * @return The number of replacements made.
+     * @throws IOException if the file cannot be read or replaced. The original is left as it was.
+     */
+    public static long replaceLiteralInFile(final File file, final String replace, final String with,
+            final Charset charset) throws IOException {
+        return LiteralReplacer.replace(file,
+                new byte[][] {replace.getBytes(charset)},
+                new byte[][] {with.getBytes(charset)});
+    }
+
+    /**
+     * Make many replacements in a file's content, in one streaming pass. The replacements do
+     * not see each other's output. Where several literals match at once, the one that starts
+     * first is replaced, and of those the longest.
+     *
+     * @param replacements Each literal to replace, and what to replace it with.
+     * @return The number of replacements made.
+     * @throws IOException if the file cannot be read or replaced. The original is left as it was.
+     * @see #replaceLiteralInFile(File, String, String, Charset)
+     */
+    public static long replaceLiteralsInFile(final File file, final Map<String, String> replacements,
+            final Charset charset) throws IOException {
+        final byte[][] patterns = new byte[replacements.size()][];
+        final byte[][] withs = new byte[replacements.size()][];
+        int i = 0;
+
+        for (final Map.Entry<String, String> entry: replacements.entrySet()) {
+            patterns[i] = entry.getKey().getBytes(charset);
+            withs[i] = entry.getValue().getBytes(charset);
+            i++;
+        }
+
+        return LiteralReplacer.replace(file, patterns, withs);
+    }
+
     /**
      * @return The fully-redirected URL, or the original if this fails.
      */
@@ -260,4 +760,163 @@ final public class FileUtils {
             Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, "GZIP failed: " + ex.getMessage(), ex);
         }
     }
+
+    /**
+     * Decompress the gzip "input" file and save to "output". The input is
+     * mapped into memory and decompressed straight into the output.
+     *
+     * @param output Will be overwritten if it already exists.
+     * @throws IOException if either file could not be read or written, or
+     *  the input is not gzip or is corrupt. The output is deleted.
+     */
+    public static void gunzip(final File input, final File output) throws IOException {
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+                WritableByteChannel out = new GzipCodec.DecompressingChannel(FileChannel.open(output.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            final long size = in.size();
+            long position = 0;
+
+            while (position < size) {
+                final MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, MAP_WINDOW_SIZE));
+                position += window.capacity();
+                out.write(window);
+            }
+        } catch (final IOException ex) {
+            Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, "GUNZIP failed: " + ex.getMessage(), ex);
+            output.delete();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * @param out Where the gzip stream is written. Closed when the returned
+     *  stream is closed.
+     * @param level 0 (fastest) to 9 (smallest), or -1 for the default.
+     * @return A stream that compresses what is written to it. Flushing it
+     *  flushes what has been compressed so far, at some cost in size.
+     *  Closing it finishes the gzip stream; it must be closed.
+     */
+    public static OutputStream gzipOutputStream(final OutputStream out, final int level) {
+        return new GzipCodec.CompressingStream(out, level);
+    }
+
+    /**
+     * @param in A gzip stream. Closed when the returned stream is closed.
+     * @return A stream of the decompressed data. Concatenated gzip members
+     *  are read as one. It must be closed.
+     */
+    public static InputStream gunzipInputStream(final InputStream in) {
+        return new GzipCodec.DecompressingStream(in);
+    }
+
+    /**
+     * @param out Where the gzip stream is written. Closed when the returned
+     *  channel is closed.
+     * @param level 0 (fastest) to 9 (smallest), or -1 for the default.
+     * @return A channel that compresses what is written to it. Closing it
+     *  finishes the gzip stream; it must be closed.
+     */
+    public static WritableByteChannel gzipChannel(final WritableByteChannel out, final int level) {
+        return new GzipCodec.CompressingChannel(out, level);
+    }
+
+    /**
+     * @param out Where the decompressed data is written. Closed when the
+     *  returned channel is closed.
+     * @return A channel that decompresses the gzip stream written to it.
+     *  Closing it checks that the stream was complete; it must be closed.
+     */
+    public static WritableByteChannel gunzipChannel(final WritableByteChannel out) {
+        return new GzipCodec.DecompressingChannel(out);
+    }
+
+    /**
+     * GZIP the "input" file and save to "output", compressing blocks of the
+     * file in parallel on the common fork-join pool.
+     *
+     * @param level 0 (fastest) to 9 (smallest), or -1 for the default.
+     * @param blockSize Bytes of input compressed by each task, e.g. 128 KB.
+     *  Each block after the first is primed with the 32 KB before it, so
+     *  smaller blocks cost little compression.
+     * @param output Will be overwritten if it already exists.
+     * @throws IOException if either file could not be read or written. The
+     *  output is deleted.
+     */
+    public static void gzip(final File input, final File output, final int level, final int blockSize)
+            throws IOException {
+        gzip(input, output, level, blockSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * GZIP the "input" file and save to "output", compressing blocks of the
+     * file in parallel on the given pool.
+     *
+     * @see #gzip(File, File, int, int)
+     */
+    public static void gzip(final File input, final File output, final int level, final int blockSize,
+            final ForkJoinPool pool) throws IOException {
+        gzip(input, output, level, blockSize, pool, null);
+    }
+
+    /**
+     * GZIP the "input" file and save to "output", as by
+     * {@link #gzip(File, File, int, int)}, computing digests of the
+     * compressed output as it is written.
+     *
+     * @param algorithms As for {@link #copyDigesting(File, File, String...)}.
+     * @return The digests of the output.
+     * @throws IOException if either file could not be read or written. The
+     *  output is deleted.
+     */
+    public static Digests gzipDigesting(final File input, final File output, final int level,
+            final int blockSize, final String... algorithms) throws IOException {
+        final long start = System.nanoTime();
+        final Digester digester = new Digester(Arrays.asList(algorithms));
+        gzip(input, output, level, blockSize, ForkJoinPool.commonPool(), digester);
+        return digester.finish(System.nanoTime() - start);
+    }
+
+    /**
+     * GZIP the "input" file and save to "output", as by
+     * {@link #gzip(File, File, int, int)}, and check that the output has the
+     * expected digests.
+     *
+     * @param expected As for {@link #copyVerified(File, File, Map)}.
+     * @return The digests of the output.
+     * @throws IOException if either file could not be read or written, or a
+     *  digest does not match. The output is deleted.
+     * @throws IllegalArgumentException if an expected digest is not hex. The
+     *  output is not touched.
+     */
+    public static Digests gzipVerified(final File input, final File output, final int level,
+            final int blockSize, final Map<String, String> expected) throws IOException {
+        Digests.checkHex(expected);
+        final long start = System.nanoTime();
+        final Digester digester = new Digester(expected.keySet());
+        gzip(input, output, level, blockSize, ForkJoinPool.commonPool(), digester);
+
+        final Digests digests = digester.finish(System.nanoTime() - start);
+        verify(digests, expected, output);
+        return digests;
+    }
+
+    /**
+     * @param digester Digests the output, or null.
+     */
+    private static void gzip(final File input, final File output, final int level, final int blockSize,
+            final ForkJoinPool pool, final Digester digester) throws IOException {
+        try (InputStream in = new FileInputStream(input);
+                OutputStream out = new BufferedOutputStream(digester == null
+                        ? new FileOutputStream(output)
+                        : digester.wrap(new FileOutputStream(output)), STREAM_BUFFER_SIZE)) {
+            ParallelGzip.compress(in, out, level, blockSize, pool);
+        } catch (final IOException ex) {
+            Logger.getLogger(FileUtils.class.getName()).log(Level.SEVERE, "GZIP failed: " + ex.getMessage(), ex);
+            output.delete();
+
+            throw ex;
+        }
+    }
 }
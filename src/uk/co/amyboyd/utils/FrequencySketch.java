@@ -0,0 +1,120 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * A count-min sketch of how often keys have been seen recently, used as the
+ * admission filter of {@link EvictionPolicy}.
+ *
+ * <p>Each key has four 4-bit counters, spread over a table of longs. The
+ * estimate is the smallest of the four. When enough keys have been counted
+ * every counter is halved, so the sketch forgets old popularity.
+ *
+ * <p>Not thread safe; the policy only uses it while holding its lock.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private long[] table = new long[0];
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int size;
+
+    /**
+     * Make room to count about this many distinct keys. Growing the table
+     * forgets every count.
+     */
+    void ensureCapacity(final long maximumSize) {
+        final int capacity = (int) Math.min(Math.max(maximumSize, 16), MAXIMUM_CAPACITY);
+        if (table.length >= capacity) {
+            return;
+        }
+
+        table = new long[Integer.highestOneBit(capacity - 1) << 1];
+        tableMask = table.length - 1;
+        sampleSize = 10 * capacity;
+        if (sampleSize <= 0) {
+            sampleSize = Integer.MAX_VALUE;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return The estimated number of times the key has been seen recently, 0 to 15.
+     */
+    int frequency(final int keyHash) {
+        final int hash = spread(keyHash);
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Count one sighting of the key.
+     */
+    void increment(final int keyHash) {
+        final int hash = spread(keyHash);
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int index, final int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(final int keyHash) {
+        int h = keyHash;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
@@ -0,0 +1,556 @@
+package uk.co.amyboyd.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Gzip compression and decompression of streams and channels, on the fly,
+ * with deflaters, inflaters and buffers from {@link ZlibPool}.
+ *
+ * @see FileUtils#gzipOutputStream(OutputStream, int)
+ * @see FileUtils#gunzipInputStream(InputStream)
+ */
+final class GzipCodec {
+    private static final byte HEADER_MAGIC = 0x1f;
+
+    static final byte[] HEADER = {
+        HEADER_MAGIC, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private GzipCodec() {
+    }
+
+    /**
+     * Compresses what is written to it, and writes the gzip stream to
+     * another channel. Closing it finishes the stream and closes the other
+     * channel.
+     */
+    static final class CompressingChannel implements WritableByteChannel {
+        final private WritableByteChannel out;
+
+        final private int level;
+
+        final private CRC32 crc = new CRC32();
+
+        private Deflater deflater;
+
+        private ByteBuffer buffer;
+
+        private long size = 0;
+
+        private boolean broken = false;
+
+        CompressingChannel(final WritableByteChannel out, final int level) {
+            this.deflater = ZlibPool.deflater(level);
+            this.out = out;
+            this.level = level;
+            this.buffer = ZlibPool.buffer();
+            buffer.put(HEADER);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            ensureOpen();
+            final int length = src.remaining();
+
+            try {
+                crc.update(src.duplicate());
+                size += length;
+
+                deflater.setInput(src);
+                while (!deflater.needsInput()) {
+                    deflater.deflate(buffer, Deflater.NO_FLUSH);
+                    if (!buffer.hasRemaining()) {
+                        drain();
+                    }
+                }
+            } catch (final IOException | RuntimeException ex) {
+                broken = true;
+                throw ex;
+            }
+
+            return length;
+        }
+
+        /**
+         * Write out everything compressed so far, so that a reader can
+         * decompress all that has been written. Costs some compression.
+         */
+        void flush() throws IOException {
+            ensureOpen();
+
+            try {
+                // A full buffer may mean there is more to flush.
+                boolean full;
+                do {
+                    deflater.deflate(buffer, Deflater.SYNC_FLUSH);
+                    full = !buffer.hasRemaining();
+                    if (full) {
+                        drain();
+                    }
+                } while (full);
+                drain();
+            } catch (final IOException | RuntimeException ex) {
+                broken = true;
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return deflater != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater == null) {
+                return;
+            }
+
+            try {
+                if (!broken) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        deflater.deflate(buffer);
+                        if (!buffer.hasRemaining()) {
+                            drain();
+                        }
+                    }
+
+                    if (buffer.remaining() < 8) {
+                        drain();
+                    }
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.putInt((int) size);
+                    buffer.order(ByteOrder.BIG_ENDIAN);
+                    drain();
+                }
+            } finally {
+                ZlibPool.release(deflater, level);
+                ZlibPool.release(buffer);
+                deflater = null;
+                buffer = null;
+                out.close();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (deflater == null) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * An output stream over a {@link CompressingChannel}. Flushing it
+     * flushes the compressed data too.
+     */
+    static final class CompressingStream extends OutputStream {
+        final private OutputStream out;
+
+        final private CompressingChannel channel;
+
+        final private byte[] single = new byte[1];
+
+        CompressingStream(final OutputStream out, final int level) {
+            this.out = out;
+            this.channel = new CompressingChannel(Channels.newChannel(out), level);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            channel.write(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            channel.flush();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Decompresses a gzip stream given to it in pieces. Several members one
+     * after another are decompressed as one stream, like gunzip does; bytes
+     * after a member that are not another member are ignored, like
+     * {@link java.util.zip.GZIPInputStream} does.
+     */
+    static final class Decoder {
+        private static final int IN_HEADER = 0;
+
+        private static final int IN_BODY = 1;
+
+        private static final int IN_TRAILER = 2;
+
+        private static final int MEMBER_END = 3;
+
+        private static final int GARBAGE = 4;
+
+        final private CRC32 crc = new CRC32();
+
+        final private byte[] trailer = new byte[8];
+
+        private Inflater inflater = ZlibPool.inflater();
+
+        private int state = IN_HEADER;
+
+        private byte[] header = new byte[32];
+
+        private int headerLength = 0;
+
+        private int trailerLength = 0;
+
+        private long size = 0;
+
+        /**
+         * Decompress as much of the input as will fit in the output.
+         *
+         * @throws ZipException if the input is not gzip, or is corrupt.
+         */
+        void decode(final ByteBuffer in, final ByteBuffer out) throws IOException {
+            while (true) {
+                switch (state) {
+                    case MEMBER_END:
+                        if (!in.hasRemaining()) {
+                            return;
+                        }
+                        if (in.get(in.position()) != HEADER_MAGIC) {
+                            state = GARBAGE;
+                            break;
+                        }
+                        inflater.reset();
+                        crc.reset();
+                        size = 0;
+                        headerLength = 0;
+                        state = IN_HEADER;
+                        break;
+
+                    case IN_HEADER:
+                        while (in.hasRemaining() && state == IN_HEADER) {
+                            if (headerLength == header.length) {
+                                header = Arrays.copyOf(header, header.length * 2);
+                            }
+                            header[headerLength++] = in.get();
+                            if (isHeaderComplete()) {
+                                state = IN_BODY;
+                            }
+                        }
+                        if (state == IN_HEADER) {
+                            return;
+                        }
+                        break;
+
+                    case IN_BODY:
+                        if (!inflate(in, out)) {
+                            return;
+                        }
+                        break;
+
+                    case IN_TRAILER:
+                        while (in.hasRemaining() && trailerLength < trailer.length) {
+                            trailer[trailerLength++] = in.get();
+                        }
+                        if (trailerLength < trailer.length) {
+                            return;
+                        }
+                        final ByteBuffer t = ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN);
+                        if (t.getInt() != (int) crc.getValue() || t.getInt() != (int) size) {
+                            throw new ZipException("Corrupt GZIP trailer");
+                        }
+                        state = MEMBER_END;
+                        break;
+
+                    default:
+                        in.position(in.limit());
+                        return;
+                }
+            }
+        }
+
+        /**
+         * @return Whether anything happened, so it is worth going on.
+         */
+        private boolean inflate(final ByteBuffer in, final ByteBuffer out) throws IOException {
+            final int inBefore = in.position();
+            final int outBefore = out.position();
+
+            inflater.setInput(in);
+            try {
+                inflater.inflate(out);
+            } catch (final DataFormatException ex) {
+                throw new ZipException(ex.getMessage());
+            }
+
+            if (out.position() > outBefore) {
+                final ByteBuffer inflated = out.duplicate();
+                inflated.position(outBefore).limit(out.position());
+                size += inflated.remaining();
+                crc.update(inflated);
+            }
+
+            if (inflater.finished()) {
+                trailerLength = 0;
+                state = IN_TRAILER;
+                return true;
+            }
+            if (inflater.needsDictionary()) {
+                throw new ZipException("Deflate stream needs a dictionary");
+            }
+            return in.position() > inBefore || out.position() > outBefore;
+        }
+
+        private boolean isHeaderComplete() throws ZipException {
+            if (headerLength < 10) {
+                return false;
+            }
+            if (headerLength == 10) {
+                if (header[0] != HEADER_MAGIC || header[1] != HEADER[1]) {
+                    throw new ZipException("Not in GZIP format");
+                }
+                if (header[2] != Deflater.DEFLATED) {
+                    throw new ZipException("Unsupported compression method");
+                }
+            }
+
+            final int flags = header[3];
+            int end = 10;
+
+            if ((flags & FEXTRA) != 0) {
+                if (headerLength < end + 2) {
+                    return false;
+                }
+                end += 2 + ((header[end] & 0xff) | (header[end + 1] & 0xff) << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                end = afterZero(end);
+                if (end < 0) {
+                    return false;
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                end = afterZero(end);
+                if (end < 0) {
+                    return false;
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                end += 2;
+            }
+
+            return headerLength >= end;
+        }
+
+        /**
+         * @return The index after the first zero byte at or after from, or
+         *  -1 if it has not been read yet.
+         */
+        private int afterZero(final int from) {
+            for (int i = from; i < headerLength; i++) {
+                if (header[i] == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Call at the end of the input.
+         *
+         * @throws EOFException if the input ended part way through a member.
+         */
+        void finish() throws EOFException {
+            if (state != MEMBER_END && state != GARBAGE) {
+                throw new EOFException("Unexpected end of GZIP input");
+            }
+        }
+
+        void release() {
+            if (inflater != null) {
+                ZlibPool.release(inflater);
+                inflater = null;
+            }
+        }
+    }
+
+    /**
+     * Decompresses what is written to it, and writes the result to another
+     * channel. Closing it checks that the gzip stream was complete, and
+     * closes the other channel.
+     */
+    static final class DecompressingChannel implements WritableByteChannel {
+        final private WritableByteChannel out;
+
+        final private Decoder decoder = new Decoder();
+
+        private ByteBuffer buffer = ZlibPool.buffer();
+
+        private boolean broken = false;
+
+        DecompressingChannel(final WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (buffer == null) {
+                throw new ClosedChannelException();
+            }
+
+            final int length = src.remaining();
+            boolean produced;
+
+            try {
+                // Go on while there is input, or the inflater may have more.
+                do {
+                    decoder.decode(src, buffer);
+                    produced = buffer.position() > 0;
+
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                } while (src.hasRemaining() || produced);
+            } catch (final IOException | RuntimeException ex) {
+                broken = true;
+                throw ex;
+            }
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return buffer != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+
+            try {
+                if (!broken) {
+                    decoder.finish();
+                }
+            } finally {
+                decoder.release();
+                ZlibPool.release(buffer);
+                buffer = null;
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Decompresses a gzip stream as it is read.
+     */
+    static final class DecompressingStream extends InputStream {
+        final private ReadableByteChannel in;
+
+        final private Decoder decoder = new Decoder();
+
+        final private byte[] single = new byte[1];
+
+        private ByteBuffer buffer = ZlibPool.buffer();
+
+        private boolean eof = false;
+
+        DecompressingStream(final InputStream in) {
+            this.in = Channels.newChannel(in);
+            // Empty, ready to be read from.
+            buffer.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            final ByteBuffer out = ByteBuffer.wrap(b, off, len);
+
+            while (true) {
+                decoder.decode(buffer, out);
+                if (out.position() > off) {
+                    return out.position() - off;
+                }
+                if (eof) {
+                    return -1;
+                }
+
+                buffer.compact();
+                final int n = in.read(buffer);
+                buffer.flip();
+
+                if (n < 0) {
+                    decoder.finish();
+                    eof = true;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+
+            decoder.release();
+            ZlibPool.release(buffer);
+            buffer = null;
+            in.close();
+        }
+    }
+}
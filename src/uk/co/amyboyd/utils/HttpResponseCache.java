@@ -0,0 +1,423 @@
+package uk.co.amyboyd.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches HTTP responses in memory and on disk, and revalidates them with
+ * conditional GETs, so that polling a URL that has not changed costs one
+ * small 304 response.
+ *
+ * <p>Responses with an ETag or Last-Modified header are kept, unless they
+ * say Cache-Control: no-store. Each later read of the URL sends
+ * If-None-Match and If-Modified-Since, and if the server answers 304 Not
+ * Modified, the cached body is used. Bodies are kept byte for byte.
+ *
+ * <p>The memory cache is an {@link ExpiringMap} bounded by the total size
+ * of the bodies. The disk cache is bounded too, evicting the least recently
+ * used responses, and survives restarts.
+ */
+public class HttpResponseCache {
+    private static final String BODY_SUFFIX = ".body";
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * A cached response.
+     */
+    private static final class Entry {
+        final String etag;
+
+        final String lastModified;
+
+        final String contentType;
+
+        final byte[] body;
+
+        Entry(final String etag, final String lastModified, final String contentType, final byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * What is known about a response on disk, without reading it.
+     */
+    private static final class DiskEntry {
+        final long size;
+
+        volatile long lastUsed;
+
+        DiskEntry(final long size, final long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    final private ExpiringMap<String, Entry> memory = new ExpiringMap<String, Entry>(0, 1);
+
+    final private File directory;
+
+    final private long maxDiskBytes;
+
+    final private ConcurrentHashMap<String, DiskEntry> diskIndex = new ConcurrentHashMap<String, DiskEntry>();
+
+    final private AtomicLong diskBytes = new AtomicLong();
+
+    /**
+     * Striped by key, so that the meta and body files of a response are
+     * written, read and removed together.
+     */
+    final private Object[] diskLocks = new Object[64];
+
+    final private LongAdder requestCount = new LongAdder();
+
+    final private LongAdder notModifiedCount = new LongAdder();
+
+    /**
+     * @param directory Where to keep responses. Created if it does not exist;
+     *  responses already there are used.
+     * @param maxMemoryBytes Total size of the bodies kept in memory.
+     * @param maxDiskBytes Total size of the bodies kept on disk.
+     * @throws IOException if the directory cannot be created.
+     */
+    public HttpResponseCache(final File directory, final long maxMemoryBytes, final long maxDiskBytes)
+            throws IOException {
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes cannot be negative.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory: " + directory.getAbsolutePath());
+        }
+
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        for (int i = 0; i < diskLocks.length; i++) {
+            diskLocks[i] = new Object();
+        }
+        memory.setMaximumWeight(maxMemoryBytes, (key, entry) -> entry.body.length);
+
+        final File[] bodies = directory.listFiles((dir, name) -> name.endsWith(BODY_SUFFIX));
+        if (bodies != null) {
+            for (final File body: bodies) {
+                final String name = body.getName();
+                diskIndex.put(name.substring(0, name.length() - BODY_SUFFIX.length()),
+                        new DiskEntry(body.length(), body.lastModified()));
+                diskBytes.addAndGet(body.length());
+            }
+        }
+        evictDisk();
+    }
+
+    /**
+     * Read a URL as text, decoded with the charset given in its Content-Type
+     * header, or the default charset if it gives none.
+     *
+     * @throws IOException if the URL cannot be read, or does not respond
+     *  with a success.
+     */
+    public String read(final URL url) throws IOException {
+        final Entry entry = fetch(url);
+        return new String(entry.body, charsetOf(entry.contentType));
+    }
+
+    /**
+     * Read a URL's body as it was sent.
+     *
+     * @throws IOException if the URL cannot be read, or does not respond
+     *  with a success.
+     */
+    public byte[] readBytes(final URL url) throws IOException {
+        return fetch(url).body.clone();
+    }
+
+    /**
+     * @return The number of reads.
+     */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * @return The number of reads answered from the cache because the server
+     *  said 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.sum();
+    }
+
+    /**
+     * @return The total size of the bodies on disk.
+     */
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+
+    /**
+     * Forget every response, in memory and on disk.
+     */
+    public void clear() {
+        memory.clear();
+        for (final String key: new ArrayList<String>(diskIndex.keySet())) {
+            removeFromDisk(key);
+        }
+    }
+
+    private Entry fetch(final URL url) throws IOException {
+        requestCount.increment();
+
+        final String key = keyOf(url);
+        Entry cached = memory.get(key);
+        if (cached == null) {
+            cached = loadFromDisk(key);
+        }
+
+        final URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        if (cached != null) {
+            if (cached.etag != null) {
+                conn.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        if (conn instanceof HttpURLConnection) {
+            final int code = ((HttpURLConnection) conn).getResponseCode();
+
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                notModifiedCount.increment();
+                touch(key);
+                return cached;
+            }
+            if (code >= 400) {
+                throw new IOException("HTTP " + code + " from " + url);
+            }
+        }
+
+        final byte[] body;
+        try (InputStream in = conn.getInputStream()) {
+            body = readFully(in);
+        }
+
+        final Entry entry = new Entry(conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"),
+                conn.getContentType(), body);
+        final String cacheControl = conn.getHeaderField("Cache-Control");
+        final boolean cacheable = (entry.etag != null || entry.lastModified != null)
+                && (cacheControl == null || !cacheControl.toLowerCase(Locale.ROOT).contains("no-store"));
+
+        if (cacheable) {
+            memory.put(key, entry);
+            saveToDisk(key, url, entry);
+        } else if (cached != null) {
+            memory.remove(key);
+            removeFromDisk(key);
+        }
+
+        return entry;
+    }
+
+    private Entry loadFromDisk(final String key) {
+        if (!diskIndex.containsKey(key)) {
+            return null;
+        }
+
+        try {
+            final Properties meta = new Properties();
+            final byte[] body;
+            synchronized (diskLock(key)) {
+                try (InputStream in = new FileInputStream(new File(directory, key + META_SUFFIX))) {
+                    meta.load(in);
+                }
+                body = Files.readAllBytes(new File(directory, key + BODY_SUFFIX).toPath());
+            }
+
+            final Entry entry = new Entry(meta.getProperty("etag"), meta.getProperty("lastModified"),
+                    meta.getProperty("contentType"), body);
+            memory.put(key, entry);
+            return entry;
+        } catch (final IOException ex) {
+            Logger.getLogger(HttpResponseCache.class.getName()).log(Level.WARNING,
+                    "Discarding unreadable cache entry " + key, ex);
+            removeFromDisk(key);
+            return null;
+        }
+    }
+
+    private void saveToDisk(final String key, final URL url, final Entry entry) {
+        if (entry.body.length > maxDiskBytes) {
+            removeFromDisk(key);
+            return;
+        }
+
+        final Properties meta = new Properties();
+        meta.setProperty("url", url.toExternalForm());
+        setIfNotNull(meta, "etag", entry.etag);
+        setIfNotNull(meta, "lastModified", entry.lastModified);
+        setIfNotNull(meta, "contentType", entry.contentType);
+
+        synchronized (diskLock(key)) {
+            try {
+                // The body is replaced last; a body without its meta is never read.
+                writeAtomically(new File(directory, key + META_SUFFIX), out -> meta.store(out, null));
+                writeAtomically(new File(directory, key + BODY_SUFFIX), out -> out.write(entry.body));
+            } catch (final IOException ex) {
+                Logger.getLogger(HttpResponseCache.class.getName()).log(Level.WARNING,
+                        "Cannot cache " + url + " on disk", ex);
+                removeFromDisk(key);
+                return;
+            }
+
+            final DiskEntry old = diskIndex.put(key, new DiskEntry(entry.body.length, System.currentTimeMillis()));
+            diskBytes.addAndGet(entry.body.length - (old == null ? 0 : old.size));
+        }
+
+        // Outside the key's lock, which evictDisk takes after its own.
+        evictDisk();
+    }
+
+    private void removeFromDisk(final String key) {
+        synchronized (diskLock(key)) {
+            final DiskEntry old = diskIndex.remove(key);
+            if (old != null) {
+                diskBytes.addAndGet(-old.size);
+            }
+            new File(directory, key + BODY_SUFFIX).delete();
+            new File(directory, key + META_SUFFIX).delete();
+        }
+    }
+
+    private Object diskLock(final String key) {
+        return diskLocks[(key.hashCode() & 0x7fffffff) % diskLocks.length];
+    }
+
+    private void touch(final String key) {
+        final DiskEntry entry = diskIndex.get(key);
+        if (entry != null) {
+            entry.lastUsed = System.currentTimeMillis();
+            // So that the order survives a restart.
+            new File(directory, key + BODY_SUFFIX).setLastModified(entry.lastUsed);
+        }
+    }
+
+    /**
+     * Remove the least recently used responses until the disk cache fits.
+     */
+    private synchronized void evictDisk() {
+        if (diskBytes.get() <= maxDiskBytes) {
+            return;
+        }
+
+        final List<Map.Entry<String, DiskEntry>> entries =
+                new ArrayList<Map.Entry<String, DiskEntry>>(diskIndex.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+
+        for (final Map.Entry<String, DiskEntry> entry: entries) {
+            if (diskBytes.get() <= maxDiskBytes) {
+                break;
+            }
+            removeFromDisk(entry.getKey());
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(final File file, final Writer writer) throws IOException {
+        final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", file.getParentFile());
+
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                writer.write(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void setIfNotNull(final Properties properties, final String name, final String value) {
+        if (value != null) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[16 * 1024];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The charset parameter of a Content-Type, or the default charset.
+     */
+    static Charset charsetOf(final String contentType) {
+        if (contentType != null) {
+            for (final String param: contentType.split(";")) {
+                final String p = param.trim();
+                if (p.regionMatches(true, 0, "charset=", 0, 8)) {
+                    try {
+                        return Charset.forName(p.substring(8).replace("\"", "").trim());
+                    } catch (final IllegalCharsetNameException | UnsupportedCharsetException ex) {
+                        break;
+                    }
+                }
+            }
+        }
+        return Charset.defaultCharset();
+    }
+
+    private static String keyOf(final URL url) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(url.toExternalForm().getBytes(StandardCharsets.UTF_8));
+            final StringBuilder key = new StringBuilder(hash.length * 2);
+            for (final byte b: hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always available", ex);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package uk.co.amyboyd.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An index of where each line of a text file starts, for reading any line
+ * or range of lines without reading the lines before it.
+ *
+ * <p>The index is built in one pass over the file, with segments of it
+ * scanned in parallel through memory mappings, and is kept as an array of
+ * offsets. It can be saved beside the file and loaded again while the file
+ * is unchanged. Lines are read by slicing a mapping of the file, so looking
+ * one up costs the same wherever it is.
+ *
+ * <p>Lines end with "\n", "\r\n" or "\r", as for
+ * {@link java.io.BufferedReader#readLine()}. The charset must encode those
+ * as single bytes, as UTF-8, ISO-8859-1 and ASCII do.
+ *
+ * <p>If the file changes after the index is built, lines read from it are
+ * wrong. Thread safe.
+ */
+public final class LineIndex implements Closeable {
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    /**
+     * The most of the file mapped at once, for reading.
+     */
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private static final long SIDECAR_MAGIC = 0x4c494e45494e4431L;
+
+    private static final int SIDECAR_HEADER_SIZE = 32;
+
+    final private FileChannel channel;
+
+    final private Charset charset;
+
+    /**
+     * Where each line starts, and then the size of the file.
+     */
+    final private long[] offsets;
+
+    /**
+     * The first line of each window, and then the number of lines.
+     */
+    final private long[] windowFirstLine;
+
+    /**
+     * Mapped on first use. Atomic so that a window mapped by one thread is
+     * safely published to the others that read it without the lock.
+     */
+    final private AtomicReferenceArray<MappedByteBuffer> windows;
+
+    private LineIndex(final FileChannel channel, final Charset charset, final long[] offsets) throws IOException {
+        this.channel = channel;
+        this.charset = charset;
+        this.offsets = offsets;
+
+        // Windows hold whole lines, so every line is one slice of one.
+        final List<Long> firsts = new ArrayList<Long>();
+        final int lines = offsets.length - 1;
+        int first = 0;
+        while (first < lines) {
+            if (offsets[first + 1] - offsets[first] > Integer.MAX_VALUE) {
+                throw new IOException("Line " + first + " is too long to map");
+            }
+            int last = first + 1;
+            while (last < lines && offsets[last + 1] - offsets[first] <= MAX_WINDOW_SIZE) {
+                last++;
+            }
+            firsts.add((long) first);
+            first = last;
+        }
+        firsts.add((long) lines);
+
+        this.windowFirstLine = new long[firsts.size()];
+        for (int i = 0; i < windowFirstLine.length; i++) {
+            windowFirstLine[i] = firsts.get(i);
+        }
+        this.windows = new AtomicReferenceArray<MappedByteBuffer>(windowFirstLine.length - 1);
+    }
+
+    /**
+     * Index a file, scanning it in parallel on the common fork-join pool.
+     *
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if the charset does not encode line
+     *  endings as single bytes.
+     */
+    public static LineIndex build(final File file, final Charset charset) throws IOException {
+        return build(file, charset, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Index a file, scanning it in parallel on the given pool.
+     *
+     * @see #build(File, Charset)
+     */
+    public static LineIndex build(final File file, final Charset charset, final ForkJoinPool pool)
+            throws IOException {
+        checkCharset(charset);
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            return new LineIndex(channel, charset, scan(channel, pool));
+        } catch (final IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Load the index of a file from its sidecar file, or if there is none,
+     * or the file has changed since, build it and save the sidecar.
+     *
+     * @param sidecar e.g. "file.idx".
+     * @throws IOException if the file cannot be read, or the sidecar cannot
+     *  be written.
+     */
+    public static LineIndex open(final File file, final Charset charset, final File sidecar) throws IOException {
+        checkCharset(charset);
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            final long size = channel.size();
+            final long modified = file.lastModified();
+
+            long[] offsets = load(sidecar, size, modified);
+            if (offsets == null) {
+                offsets = scan(channel, ForkJoinPool.commonPool());
+                save(sidecar, offsets, modified);
+            }
+
+            return new LineIndex(channel, charset, offsets);
+        } catch (final IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public long getLineCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return The offset in the file where a line starts. The line count
+     *  gives the size of the file.
+     */
+    public long getOffset(final long line) {
+        if (line < 0 || line > getLineCount()) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + getLineCount());
+        }
+        return offsets[(int) line];
+    }
+
+    /**
+     * @param line From 0.
+     * @return The line, without its line ending.
+     */
+    public String line(final long line) throws IOException {
+        return charset.decode(lineBytes(line)).toString();
+    }
+
+    /**
+     * @param line From 0.
+     * @return The bytes of the line, without its line ending: a read-only
+     *  slice of the mapping of the file, not a copy.
+     */
+    public ByteBuffer lineBytes(final long line) throws IOException {
+        checkRange(line, line + 1);
+        final int w = windowOf(line);
+        final long base = offsets[(int) windowFirstLine[w]];
+        final MappedByteBuffer window = window(w);
+
+        final int start = (int) (offsets[(int) line] - base);
+        int end = (int) (offsets[(int) line + 1] - base);
+        if (end > start && window.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+
+        return window.slice(start, end - start);
+    }
+
+    /**
+     * @param from The first line, from 0.
+     * @param to The line after the last.
+     * @return The lines, without their line endings.
+     */
+    public List<String> lines(final long from, final long to) throws IOException {
+        checkRange(from, to);
+        final List<String> lines = new ArrayList<String>((int) (to - from));
+        for (long line = from; line < to; line++) {
+            lines.add(line(line));
+        }
+        return lines;
+    }
+
+    /**
+     * @param from The first line, from 0.
+     * @param to The line after the last.
+     * @return The text of the lines, with their line endings.
+     */
+    public String range(final long from, final long to) throws IOException {
+        return charset.decode(rangeBytes(from, to)).toString();
+    }
+
+    /**
+     * @param from The first line, from 0.
+     * @param to The line after the last.
+     * @return The bytes of the lines, with their line endings. A read-only
+     *  slice of the mapping if they are all in one window of it, otherwise
+     *  a copy.
+     */
+    public ByteBuffer rangeBytes(final long from, final long to) throws IOException {
+        checkRange(from, to);
+        if (from == to) {
+            return ByteBuffer.allocate(0);
+        }
+
+        final int w = windowOf(from);
+        if (to <= windowFirstLine[w + 1]) {
+            final long base = offsets[(int) windowFirstLine[w]];
+            final int start = (int) (offsets[(int) from] - base);
+            return window(w).slice(start, (int) (offsets[(int) to] - base) - start);
+        }
+
+        final long length = offsets[(int) to] - offsets[(int) from];
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Lines " + from + " to " + to + " are too long to copy");
+        }
+
+        final ByteBuffer copy = ByteBuffer.allocate((int) length);
+        long line = from;
+        while (line < to) {
+            final int lw = windowOf(line);
+            final long end = Math.min(to, windowFirstLine[lw + 1]);
+            final long base = offsets[(int) windowFirstLine[lw]];
+            final int start = (int) (offsets[(int) line] - base);
+            copy.put(window(lw).slice(start, (int) (offsets[(int) end] - base) - start));
+            line = end;
+        }
+        return copy.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void checkRange(final long from, final long to) {
+        if (from < 0 || to > getLineCount() || from > to) {
+            throw new IndexOutOfBoundsException("Lines " + from + " to " + to + " of " + getLineCount());
+        }
+    }
+
+    private int windowOf(final long line) {
+        final int i = Arrays.binarySearch(windowFirstLine, line);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private MappedByteBuffer window(final int w) throws IOException {
+        MappedByteBuffer window = windows.get(w);
+        if (window == null) {
+            synchronized (windows) {
+                window = windows.get(w);
+                if (window == null) {
+                    final long start = offsets[(int) windowFirstLine[w]];
+                    final long end = offsets[(int) windowFirstLine[w + 1]];
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    windows.set(w, window);
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Find the line starts in each segment of the file in parallel, and put
+     * them together.
+     */
+    private static long[] scan(final FileChannel channel, final ForkJoinPool pool) throws IOException {
+        final long size = channel.size();
+        final List<ForkJoinTask<long[]>> tasks = new ArrayList<ForkJoinTask<long[]>>();
+
+        for (long start = 0; start < size; start += SEGMENT_SIZE) {
+            final long segmentStart = start;
+            final long segmentEnd = Math.min(size, start + SEGMENT_SIZE);
+            // One byte more, to see whether a "\r" at the end is "\r\n".
+            final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                    Math.min(size, segmentEnd + 1) - segmentStart);
+            tasks.add(pool.submit(() -> scanSegment(segment, segmentStart, segmentEnd, size)));
+        }
+
+        final long[][] parts = new long[tasks.size()][];
+        int count = 1;
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = tasks.get(i).join();
+                count += parts[i].length;
+            }
+        } catch (final RuntimeException ex) {
+            for (final ForkJoinTask<long[]> task: tasks) {
+                task.cancel(true);
+            }
+            throw new IOException("Indexing failed: " + ex.getMessage(), ex);
+        }
+
+        final long[] offsets = new long[size == 0 ? 1 : count + 1];
+        int n = 0;
+        if (size > 0) {
+            offsets[n++] = 0;
+        }
+        for (final long[] part: parts) {
+            System.arraycopy(part, 0, offsets, n, part.length);
+            n += part.length;
+        }
+        offsets[n] = size;
+        return offsets;
+    }
+
+    /**
+     * @return Where the lines that start after a line ending in this
+     *  segment start, other than at the end of the file.
+     */
+    private static long[] scanSegment(final MappedByteBuffer segment, final long segmentStart,
+            final long segmentEnd, final long size) {
+        final int length = (int) (segmentEnd - segmentStart);
+        final int last = (int) Math.min(size - 1 - segmentStart, Integer.MAX_VALUE);
+        long[] starts = new long[1024];
+        int n = 0;
+
+        for (int i = 0; i < length; i++) {
+            // Skip eight bytes at a time while there is no line ending.
+            while (i + Long.BYTES <= length && !hasLineEnding(segment.getLong(i))) {
+                i += Long.BYTES;
+            }
+            if (i == length) {
+                break;
+            }
+
+            final byte b = segment.get(i);
+            if (b == '\n' || (b == '\r' && (i == last || segment.get(i + 1) != '\n'))) {
+                if (i == last) {
+                    break;
+                }
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n * 2);
+                }
+                starts[n++] = segmentStart + i + 1;
+            }
+        }
+
+        return Arrays.copyOf(starts, n);
+    }
+
+    /**
+     * @return Whether any of the eight bytes is "\n" or "\r".
+     */
+    private static boolean hasLineEnding(final long bytes) {
+        final long lf = bytes ^ 0x0a0a0a0a0a0a0a0aL;
+        final long cr = bytes ^ 0x0d0d0d0d0d0d0d0dL;
+        final long ones = 0x0101010101010101L;
+        return ((((lf - ones) & ~lf) | ((cr - ones) & ~cr)) & 0x8080808080808080L) != 0;
+    }
+
+    /**
+     * @return The offsets in a sidecar, or null if there is none, it cannot
+     *  be read, or it is for a different version of the file.
+     */
+    private static long[] load(final File sidecar, final long size, final long modified) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        try (FileChannel in = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (map.remaining() < SIDECAR_HEADER_SIZE || map.getLong() != SIDECAR_MAGIC
+                    || map.getLong() != modified) {
+                return null;
+            }
+
+            final long count = map.getLong();
+            final long sidecarSize = map.getLong();
+            if (sidecarSize != size || count < 1 || count > Integer.MAX_VALUE
+                    || map.remaining() != count * Long.BYTES) {
+                return null;
+            }
+
+            final long[] offsets = new long[(int) count];
+            map.asLongBuffer().get(offsets);
+            return offsets[offsets.length - 1] == size ? offsets : null;
+        } catch (final IOException ex) {
+            Logger.getLogger(LineIndex.class.getName()).log(Level.WARNING,
+                    "Ignoring unreadable line index " + sidecar, ex);
+            return null;
+        }
+    }
+
+    private static void save(final File sidecar, final long[] offsets, final long modified) throws IOException {
+        final File temp = File.createTempFile("." + sidecar.getName() + ".", ".tmp",
+                sidecar.getAbsoluteFile().getParentFile());
+
+        try {
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER_SIZE);
+                header.putLong(SIDECAR_MAGIC).putLong(modified).putLong(offsets.length)
+                        .putLong(offsets[offsets.length - 1]).flip();
+                write(out, header);
+
+                final ByteBuffer body = ByteBuffer.allocateDirect(64 * 1024);
+                final LongBuffer longs = body.asLongBuffer();
+                for (int i = 0; i < offsets.length; i += longs.capacity()) {
+                    final int n = Math.min(longs.capacity(), offsets.length - i);
+                    longs.clear();
+                    longs.put(offsets, i, n);
+                    body.clear().limit(n * Long.BYTES);
+                    write(out, body);
+                }
+                out.force(true);
+            }
+            Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void checkCharset(final Charset charset) {
+        if (!Arrays.equals("\r\n".getBytes(charset), new byte[] {'\r', '\n'})) {
+            throw new IllegalArgumentException("Line endings are not single bytes in " + charset);
+        }
+    }
+}
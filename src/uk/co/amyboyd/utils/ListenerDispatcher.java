@@ -0,0 +1,160 @@
+package uk.co.amyboyd.utils;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands removal notifications from an {@link ExpiringMap} to an executor in
+ * batches, so that slow listeners do not hold up the expirer.
+ *
+ * <p>At most one batch is delivered at a time, so listeners see entries in
+ * the order they were removed. The queue is bounded; when it is full,
+ * {@link #dispatch} blocks until the listeners catch up.
+ */
+final class ListenerDispatcher<K, V> {
+    /**
+     * Delivers one batch, in which every entry has the same cause.
+     */
+    interface Deliverer<K, V> {
+        void deliver(List<Map.Entry<K, V>> entries, RemovalCause cause);
+    }
+
+    private static final class Notification<K, V> {
+        final Map.Entry<K, V> entry;
+
+        final RemovalCause cause;
+
+        Notification(final K key, final V value, final RemovalCause cause) {
+            this.entry = new AbstractMap.SimpleImmutableEntry<K, V>(key, value);
+            this.cause = cause;
+        }
+    }
+
+    final private Executor executor;
+
+    final private int maxBatchSize;
+
+    final private Deliverer<K, V> deliverer;
+
+    final private BlockingQueue<Notification<K, V>> queue;
+
+    final private AtomicBoolean draining = new AtomicBoolean();
+
+    ListenerDispatcher(final Executor executor, final int maxQueued, final int maxBatchSize,
+            final Deliverer<K, V> deliverer) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null.");
+        }
+        if (maxQueued < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Queue and batch sizes must be positive.");
+        }
+
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.deliverer = deliverer;
+        this.queue = new ArrayBlockingQueue<Notification<K, V>>(maxQueued);
+    }
+
+    /**
+     * Queue a notification, waiting for space if the queue is full. If the
+     * wait is interrupted, or the executor rejects the work, the
+     * notification is delivered on the calling thread instead.
+     */
+    void dispatch(final K key, final V value, final RemovalCause cause) {
+        final Notification<K, V> notification = new Notification<K, V>(key, value, cause);
+
+        try {
+            queue.put(notification);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deliverSafely(Collections.singletonList(notification.entry), cause);
+            return;
+        }
+
+        scheduleDrain();
+    }
+
+    /**
+     * @return The number of notifications waiting to be delivered.
+     */
+    int getQueued() {
+        return queue.size();
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(this::drain);
+        } catch (final RejectedExecutionException e) {
+            Logger.getLogger(ListenerDispatcher.class.getName()).log(Level.WARNING,
+                    "Executor rejected listener dispatch; delivering on the calling thread.", e);
+            drain();
+        }
+    }
+
+    private void drain() {
+        final List<Notification<K, V>> batch = new ArrayList<Notification<K, V>>(maxBatchSize);
+
+        while (true) {
+            queue.drainTo(batch, maxBatchSize);
+
+            if (batch.isEmpty()) {
+                draining.set(false);
+
+                // A notification may have been queued after drainTo but
+                // before the flag was cleared; if so, carry on.
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            deliverRuns(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Split the batch into runs that have the same cause.
+     */
+    private void deliverRuns(final List<Notification<K, V>> batch) {
+        int start = 0;
+        while (start < batch.size()) {
+            final RemovalCause cause = batch.get(start).cause;
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).cause == cause) {
+                end++;
+            }
+
+            final List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(end - start);
+            for (int i = start; i < end; i++) {
+                entries.add(batch.get(i).entry);
+            }
+            deliverSafely(entries, cause);
+
+            start = end;
+        }
+    }
+
+    private void deliverSafely(final List<Map.Entry<K, V>> entries, final RemovalCause cause) {
+        try {
+            deliverer.deliver(entries, cause);
+        } catch (final RuntimeException e) {
+            Logger.getLogger(ListenerDispatcher.class.getName()).log(Level.SEVERE,
+                    "Expiration listener failed.", e);
+        }
+    }
+}
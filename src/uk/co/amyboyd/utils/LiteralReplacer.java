@@ -0,0 +1,405 @@
+package uk.co.amyboyd.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Replaces literal byte strings in a file in one streaming pass, used by
+ * {@link FileUtils#replaceLiteralInFile}.
+ *
+ * <p>The file is searched through a read-only mapping that slides forward a
+ * window at a time, and the result is written to a temporary file in the
+ * same directory which then replaces the original atomically. A single
+ * pattern is found with Boyer-Moore-Horspool; several are found at once
+ * with Aho-Corasick.
+ *
+ * <p>Matches do not overlap. Where several patterns match, the one that
+ * starts first wins, and of those the longest.
+ */
+final class LiteralReplacer {
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private LiteralReplacer() {
+    }
+
+    /**
+     * Replace every match of patterns[i] with replacements[i]. If nothing
+     * matches, the file is left untouched.
+     *
+     * @return The number of replacements made.
+     */
+    static long replace(final File file, final byte[][] patterns, final byte[][] replacements)
+            throws IOException {
+        if (patterns.length != replacements.length) {
+            throw new IllegalArgumentException("Patterns and replacements differ in number.");
+        }
+        int maxLength = 0;
+        for (final byte[] pattern: patterns) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Cannot replace an empty string.");
+            }
+            maxLength = Math.max(maxLength, pattern.length);
+        }
+        if (patterns.length == 0) {
+            return 0;
+        }
+
+        final Matcher matcher = patterns.length == 1
+                ? new Horspool(patterns[0])
+                : new AhoCorasick(patterns);
+        final File temp = File.createTempFile("." + file.getName() + ".", ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        long count = 0;
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            final MappedBytes text = new MappedBytes(in, maxLength);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+            long written = 0;
+            long start;
+
+            while ((start = matcher.find(text, written)) >= 0) {
+                final int pattern = matcher.matchedPattern();
+                text.copyTo(written, start, out, buffer);
+                put(ByteBuffer.wrap(replacements[pattern]), out, buffer);
+                written = start + patterns[pattern].length;
+                count++;
+            }
+
+            if (count > 0) {
+                text.copyTo(written, text.size, out, buffer);
+                flush(out, buffer);
+                out.force(true);
+            }
+        } catch (final UncheckedIOException ex) {
+            temp.delete();
+            throw ex.getCause();
+        } catch (final IOException | RuntimeException ex) {
+            temp.delete();
+            throw ex;
+        }
+
+        if (count == 0) {
+            temp.delete();
+            return 0;
+        }
+
+        try {
+            FileUtils.copyAttributes(file, temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException ex) {
+            temp.delete();
+            throw ex;
+        }
+        return count;
+    }
+
+    private static void put(final ByteBuffer src, final FileChannel out, final ByteBuffer buffer)
+            throws IOException {
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flush(out, buffer);
+            }
+
+            if (src.remaining() <= buffer.remaining()) {
+                buffer.put(src);
+            } else {
+                final ByteBuffer part = src.duplicate();
+                part.limit(part.position() + buffer.remaining());
+                buffer.put(part);
+                src.position(part.position());
+            }
+        }
+    }
+
+    private static void flush(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Random access to a file through a sliding mapping. Positions up to
+     * lookBehind bytes before the last one read can be read again without
+     * remapping.
+     */
+    private static final class MappedBytes {
+        final private FileChannel channel;
+
+        final long size;
+
+        final private long lookBehind;
+
+        private MappedByteBuffer window;
+
+        private long windowStart = 0;
+
+        private long windowEnd = 0;
+
+        MappedBytes(final FileChannel channel, final long lookBehind) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.lookBehind = lookBehind;
+        }
+
+        byte get(final long i) {
+            if (i < windowStart || i >= windowEnd) {
+                map(i);
+            }
+            return window.get((int) (i - windowStart));
+        }
+
+        void copyTo(long from, final long to, final FileChannel out, final ByteBuffer buffer)
+                throws IOException {
+            while (from < to) {
+                if (from < windowStart || from >= windowEnd) {
+                    map(from);
+                }
+
+                final ByteBuffer src = window.duplicate();
+                src.position((int) (from - windowStart));
+                src.limit((int) (Math.min(to, windowEnd) - windowStart));
+                from += src.remaining();
+                put(src, out, buffer);
+            }
+        }
+
+        private void map(final long i) {
+            windowStart = Math.max(0, i - lookBehind);
+            windowEnd = windowStart + Math.min(size - windowStart, WINDOW_SIZE);
+
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private interface Matcher {
+        /**
+         * @return Where the first match at or after from starts, or -1.
+         */
+        long find(MappedBytes text, long from);
+
+        /**
+         * @return The index of the pattern found by the last call to find.
+         */
+        int matchedPattern();
+    }
+
+    private static final class Horspool implements Matcher {
+        final private byte[] pattern;
+
+        final private int[] shift = new int[256];
+
+        Horspool(final byte[] pattern) {
+            this.pattern = pattern;
+
+            final int m = pattern.length;
+            Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                shift[pattern[i] & 0xff] = m - 1 - i;
+            }
+        }
+
+        @Override
+        public long find(final MappedBytes text, final long from) {
+            final int m = pattern.length;
+            final byte lastByte = pattern[m - 1];
+
+            for (long i = from; i + m <= text.size; ) {
+                final byte b = text.get(i + m - 1);
+                if (b == lastByte) {
+                    int j = m - 2;
+                    while (j >= 0 && text.get(i + j) == pattern[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += shift[b & 0xff];
+            }
+
+            return -1;
+        }
+
+        @Override
+        public int matchedPattern() {
+            return 0;
+        }
+    }
+
+    /**
+     * A trie of the patterns with failure links. The root has a full
+     * transition table; other states keep their children in a list.
+     */
+    private static final class AhoCorasick implements Matcher {
+        private static final int ROOT = 0;
+
+        private final int[] rootNext = new int[256];
+
+        private int[] firstChild;
+
+        private int[] nextSibling;
+
+        private byte[] label;
+
+        private int[] fail;
+
+        private int[] depth;
+
+        /**
+         * The length of the longest pattern that ends at each state, or 0.
+         */
+        private int[] matchLength;
+
+        private int[] matchPattern;
+
+        private int states = 1;
+
+        private int matched;
+
+        AhoCorasick(final byte[][] patterns) {
+            int capacity = 1;
+            for (final byte[] pattern: patterns) {
+                capacity += pattern.length;
+            }
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            label = new byte[capacity];
+            fail = new int[capacity];
+            depth = new int[capacity];
+            matchLength = new int[capacity];
+            matchPattern = new int[capacity];
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(rootNext, -1);
+
+            for (int p = 0; p < patterns.length; p++) {
+                int state = ROOT;
+                for (final byte b: patterns[p]) {
+                    int child = child(state, b);
+                    if (child < 0) {
+                        child = states++;
+                        label[child] = b;
+                        depth[child] = depth[state] + 1;
+                        nextSibling[child] = firstChild[state];
+                        firstChild[state] = child;
+                        if (state == ROOT) {
+                            rootNext[b & 0xff] = child;
+                        }
+                    }
+                    state = child;
+                }
+                matchLength[state] = patterns[p].length;
+                matchPattern[state] = p;
+            }
+
+            buildFailureLinks();
+            for (int b = 0; b < 256; b++) {
+                if (rootNext[b] < 0) {
+                    rootNext[b] = ROOT;
+                }
+            }
+        }
+
+        private void buildFailureLinks() {
+            final int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+
+            for (int c = firstChild[ROOT]; c >= 0; c = nextSibling[c]) {
+                fail[c] = ROOT;
+                queue[tail++] = c;
+            }
+
+            while (head < tail) {
+                final int state = queue[head++];
+
+                // A pattern that is a suffix of this state also ends here.
+                if (matchLength[state] == 0 && matchLength[fail[state]] > 0) {
+                    matchLength[state] = matchLength[fail[state]];
+                    matchPattern[state] = matchPattern[fail[state]];
+                }
+
+                for (int c = firstChild[state]; c >= 0; c = nextSibling[c]) {
+                    fail[c] = next(fail[state], label[c]);
+                    queue[tail++] = c;
+                }
+            }
+        }
+
+        private int child(final int state, final byte b) {
+            if (state == ROOT) {
+                return rootNext[b & 0xff];
+            }
+            for (int c = firstChild[state]; c >= 0; c = nextSibling[c]) {
+                if (label[c] == b) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        private int next(int state, final byte b) {
+            while (true) {
+                final int c = child(state, b);
+                if (c >= 0) {
+                    return c;
+                }
+                if (state == ROOT) {
+                    return ROOT;
+                }
+                state = fail[state];
+            }
+        }
+
+        @Override
+        public long find(final MappedBytes text, final long from) {
+            int state = ROOT;
+            long bestStart = -1;
+            int bestPattern = 0;
+
+            for (long pos = from; pos < text.size; pos++) {
+                state = next(state, text.get(pos));
+
+                // The longest pattern ending here is the one that starts first.
+                if (matchLength[state] > 0) {
+                    final long start = pos - matchLength[state] + 1;
+                    if (bestStart < 0 || start <= bestStart) {
+                        bestStart = start;
+                        bestPattern = matchPattern[state];
+                    }
+                }
+
+                // Any match still to be found starts within the current state.
+                if (bestStart >= 0 && bestStart < pos + 1 - depth[state]) {
+                    break;
+                }
+            }
+
+            matched = bestPattern;
+            return bestStart;
+        }
+
+        @Override
+        public int matchedPattern() {
+            return matched;
+        }
+    }
+}
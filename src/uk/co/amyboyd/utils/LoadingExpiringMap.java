@@ -0,0 +1,178 @@
+package uk.co.amyboyd.utils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link ExpiringMap} that loads missing values with a {@link CacheLoader}.
+ *
+ * <p>Concurrent misses on one key share a single load. Optionally, a value
+ * that is read shortly before it expires is reloaded in the background, so
+ * that callers of a hot key never wait for it to be loaded again.
+ */
+public class LoadingExpiringMap<K, V> extends ExpiringMap<K, V> {
+    final private CacheLoader<? super K, V> loader;
+
+    final private Set<K> refreshing = ConcurrentHashMap.newKeySet();
+
+    private volatile long refreshAheadMillis = 0;
+
+    private volatile Executor refreshExecutor = ForkJoinPool.commonPool();
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param loader
+     *  Loads the values for missing keys
+     */
+    public LoadingExpiringMap(int timeToLive, int expirationInterval,
+            CacheLoader<? super K, V> loader) {
+        this(timeToLive, expirationInterval, ExpirationStrategy.SCAN, null, loader);
+    }
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param expirationStrategy
+     *  How the expirer finds the values that should be removed
+     * @param scheduler
+     *  The scheduler to run the expirer on, or null for a dedicated thread
+     * @param loader
+     *  Loads the values for missing keys
+     */
+    public LoadingExpiringMap(int timeToLive, int expirationInterval,
+            ExpirationStrategy expirationStrategy, ExpirationScheduler scheduler,
+            CacheLoader<? super K, V> loader) {
+        super(timeToLive, expirationInterval, expirationStrategy, scheduler);
+
+        if (loader == null) {
+            throw new IllegalArgumentException("Loader cannot be null.");
+        }
+
+        this.loader = loader;
+    }
+
+    /**
+     * Get the value for a key, loading it if it is missing.
+     *
+     * @return The value, or null if the loader returned null.
+     * @throws ExecutionException if the loader threw an exception.
+     */
+    public V getOrLoad(K key) throws ExecutionException {
+        // Under ACCESSED the read moves the deadline, so measure before it.
+        long remaining = refreshAheadMillis > 0
+                ? getRemainingTimeToLive(key, TimeUnit.MILLISECONDS)
+                : -1;
+
+        V value = get(key);
+        if (value != null) {
+            refreshIfExpiringSoon(key, value, remaining);
+            return value;
+        }
+
+        try {
+            return computeAbsent(key, k -> {
+                try {
+                    return loader.load(k);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new LoaderException(e);
+                }
+            });
+        } catch (LoaderException e) {
+            throw new ExecutionException(e.getCause());
+        } catch (RuntimeException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * Reload values that are read less than this long before they expire.
+     * Zero (the default) turns refresh-ahead off.
+     *
+     * <p>Under {@link ExpirationPolicy#ACCESSED} the time left is measured
+     * before the read, so a value is reloaded when it is read after going
+     * unread for nearly the time-to-live.
+     */
+    public void setRefreshAhead(long refreshAhead, TimeUnit unit) {
+        refreshAheadMillis = Math.max(0, unit.toMillis(refreshAhead));
+    }
+
+    public long getRefreshAhead(TimeUnit unit) {
+        return unit.convert(refreshAheadMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the executor that background reloads run on. Defaults to the
+     * common fork-join pool.
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        if (refreshExecutor == null) {
+            throw new IllegalArgumentException("Refresh executor cannot be null.");
+        }
+
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @param remaining
+     *  How long the value had left (milliseconds) before it was read, or -1
+     */
+    private void refreshIfExpiringSoon(final K key, final V oldValue, final long remaining) {
+        long refreshAhead = refreshAheadMillis;
+        if (refreshAhead <= 0) {
+            return;
+        }
+
+        if (remaining < 0 || remaining > refreshAhead) {
+            return;
+        }
+
+        // Only one reload per key at a time.
+        if (!refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    V newValue = loader.reload(key, oldValue);
+                    if (newValue != null) {
+                        replaceReloaded(key, oldValue, newValue);
+                    }
+                } catch (Exception e) {
+                    Logger.getLogger(LoadingExpiringMap.class.getName()).log(Level.WARNING,
+                            "Refresh failed for key: " + key, e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(key);
+            Logger.getLogger(LoadingExpiringMap.class.getName()).log(Level.WARNING,
+                    "Refresh not scheduled for key: " + key, e);
+        }
+    }
+
+    /**
+     * Carries a checked exception from the loader through computeIfAbsent.
+     */
+    private static class LoaderException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LoaderException(Exception cause) {
+            super(cause);
+        }
+    }
+}
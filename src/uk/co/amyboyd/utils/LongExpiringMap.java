@@ -0,0 +1,520 @@
+package uk.co.amyboyd.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A map with expiration for primitive long keys. It has the same expiry
+ * semantics and listener API as {@link ExpiringMap}, but stores keys, values
+ * and times in open-addressing arrays, so there is no boxed key and no
+ * per-entry object: 24 bytes per table slot (32 once any entry has its own
+ * time-to-live), and the tables are kept between 3/8 and 3/4 full.
+ *
+ * <p>The map is split into segments, each with its own lock. The expirer
+ * scans the time arrays of one segment at a time.
+ */
+public class LongExpiringMap<V> {
+    private static final int SEGMENTS = 64;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private static final long DEFAULT_TIME_TO_LIVE_MILLIS = Long.MIN_VALUE;
+
+    private static volatile int expirerCount = 1;
+
+    final private List<Segment> segments = new ArrayList<Segment>(SEGMENTS);
+
+    final private CopyOnWriteArrayList<ExpirationListener<V>> expirationListeners =
+            new CopyOnWriteArrayList<ExpirationListener<V>>();
+
+    final private ExpirationScheduler scheduler;
+
+    final private Object stateLock = new Object();
+
+    private volatile long timeToLiveMillis;
+
+    private volatile long expirationIntervalMillis;
+
+    private volatile ExpiringMap.ExpirationPolicy expirationPolicy = ExpiringMap.ExpirationPolicy.ACCESSED;
+
+    private volatile boolean running = false;
+
+    private volatile Thread expirerThread;
+
+    private ScheduledFuture<?> scheduledTask;
+
+    /**
+     * Creates a new instance of LongExpiringMap using the default values
+     * {@link ExpiringMap#DEFAULT_TIME_TO_LIVE} and
+     * {@link ExpiringMap#DEFAULT_EXPIRATION_INTERVAL}.
+     */
+    public LongExpiringMap() {
+        this(ExpiringMap.DEFAULT_TIME_TO_LIVE, ExpiringMap.DEFAULT_EXPIRATION_INTERVAL);
+    }
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     */
+    public LongExpiringMap(int timeToLive, int expirationInterval) {
+        this(timeToLive, expirationInterval, null);
+    }
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param scheduler
+     *  The scheduler to run the expirer on, or null for a dedicated thread
+     */
+    public LongExpiringMap(int timeToLive, int expirationInterval, ExpirationScheduler scheduler) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new Segment());
+        }
+
+        this.scheduler = scheduler;
+        this.timeToLiveMillis = timeToLive * 1000L;
+        this.expirationIntervalMillis = expirationInterval * 1000L;
+    }
+
+    /**
+     * @return The previous value for the key, or null.
+     */
+    public V put(long key, V value) {
+        return put(key, value, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    /**
+     * Put a value that has its own time-to-live, instead of the map's.
+     *
+     * @param timeToLive
+     *  The time-to-live value. Zero or less means the value never expires.
+     * @return The previous value for the key, or null.
+     */
+    public V put(long key, V value, long timeToLive, TimeUnit unit) {
+        return put(key, value, timeToLive <= 0 ? 0 : Math.max(1, unit.toMillis(timeToLive)));
+    }
+
+    private V put(long key, V value, long ttl) {
+        if (value == null) {
+            throw new IllegalArgumentException("An expiring object cannot be null.");
+        }
+
+        long hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, ttl, CoarseClock.currentTimeMillis());
+    }
+
+    public V get(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash,
+                expirationPolicy == ExpiringMap.ExpirationPolicy.ACCESSED
+                        ? CoarseClock.currentTimeMillis()
+                        : Long.MIN_VALUE);
+    }
+
+    /**
+     * @return The removed value, or null.
+     */
+    public V remove(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash, Long.MIN_VALUE) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment: segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (Segment segment: segments) {
+            segment.clear();
+        }
+    }
+
+    public void addExpirationListener(ExpirationListener<V> listener) {
+        expirationListeners.add(listener);
+    }
+
+    public void removeExpirationListener(ExpirationListener<V> listener) {
+        expirationListeners.remove(listener);
+    }
+
+    /**
+     * @return The time-to-live (seconds)
+     */
+    public int getTimeToLive() {
+        return (int) (timeToLiveMillis / 1000);
+    }
+
+    /**
+     * @param timeToLive The time-to-live (seconds)
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLiveMillis = timeToLive * 1000L;
+    }
+
+    /**
+     * @return The time between checks (seconds)
+     */
+    public int getExpirationInterval() {
+        return (int) (expirationIntervalMillis / 1000);
+    }
+
+    /**
+     * @param expirationInterval The time between checks (seconds)
+     */
+    public void setExpirationInterval(int expirationInterval) {
+        synchronized (stateLock) {
+            this.expirationIntervalMillis = expirationInterval * 1000L;
+
+            // Pick up the new interval on the scheduler.
+            if (running && scheduler != null) {
+                stopLocked();
+                startLocked();
+            }
+        }
+    }
+
+    public ExpiringMap.ExpirationPolicy getExpirationPolicy() {
+        return expirationPolicy;
+    }
+
+    /**
+     * Change what the time-to-live is counted from.
+     *
+     * <p>The map keeps one time per value, so it cannot recover when a
+     * value was put once it has been read under
+     * {@link ExpiringMap.ExpirationPolicy#ACCESSED}. After switching to
+     * {@link ExpiringMap.ExpirationPolicy#CREATED}, a value already in the
+     * map is counted from when it was last read; only values put afterwards
+     * are counted from when they were put.
+     */
+    public void setExpirationPolicy(ExpiringMap.ExpirationPolicy expirationPolicy) {
+        if (expirationPolicy == null) {
+            throw new IllegalArgumentException("Expiration policy cannot be null.");
+        }
+
+        this.expirationPolicy = expirationPolicy;
+    }
+
+    /**
+     * Start looking for old values and removing them.
+     */
+    public void startExpiring() {
+        synchronized (stateLock) {
+            if (!running) {
+                startLocked();
+            }
+        }
+    }
+
+    /**
+     * Stop looking for old values.
+     */
+    public void stopExpiring() {
+        synchronized (stateLock) {
+            if (running) {
+                stopLocked();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Must hold the state lock.
+     */
+    private void startLocked() {
+        running = true;
+
+        if (scheduler != null) {
+            scheduledTask = scheduler.schedule(this::processExpires,
+                    Math.max(1, expirationIntervalMillis));
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running && Thread.currentThread() == expirerThread) {
+                    processExpires();
+
+                    try {
+                        Thread.sleep(expirationIntervalMillis);
+                    } catch (final InterruptedException e) {
+                    }
+                }
+            }
+        }, "LongExpiringMapExpirer-" + expirerCount++);
+        thread.setDaemon(true);
+        expirerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Must hold the state lock.
+     */
+    private void stopLocked() {
+        running = false;
+
+        if (scheduledTask != null) {
+            scheduledTask.cancel(false);
+            scheduledTask = null;
+        }
+
+        Thread thread = expirerThread;
+        if (thread != null) {
+            expirerThread = null;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Remove expired values and tell the listeners. Each segment is locked
+     * only while it is scanned; listeners are called with no lock held.
+     */
+    void processExpires() {
+        long timeNow = System.currentTimeMillis();
+        List<V> expired = new ArrayList<V>();
+
+        for (Segment segment: segments) {
+            segment.removeExpired(timeNow, expired);
+
+            for (V value: expired) {
+                for (ExpirationListener<V> listener: expirationListeners) {
+                    listener.expired(value, RemovalCause.EXPIRED);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments.get((int) (hash >>> 58));
+    }
+
+    /**
+     * The finalizer of MurmurHash3; spreads sequential IDs over the table.
+     */
+    private static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A linear-probing table. A slot is free if its value is null; removal
+     * shifts later entries back, so there are no tombstones.
+     */
+    private final class Segment {
+        private long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+
+        private Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+
+        /**
+         * The last access time or creation time, depending on the policy.
+         */
+        private long[] times = new long[INITIAL_SEGMENT_CAPACITY];
+
+        /**
+         * Created the first time an entry has its own time-to-live.
+         */
+        private long[] ttls;
+
+        private int size;
+
+        synchronized V put(long key, long hash, V value, long ttl, long timeNow) {
+            if (ttl != DEFAULT_TIME_TO_LIVE_MILLIS && ttls == null) {
+                ttls = new long[keys.length];
+                Arrays.fill(ttls, DEFAULT_TIME_TO_LIVE_MILLIS);
+            }
+
+            int i = indexOf(key, hash);
+            if (values[i] != null) {
+                V old = valueAt(i);
+                set(i, key, value, timeNow, ttl);
+                return old;
+            }
+
+            set(i, key, value, timeNow, ttl);
+            if (++size > keys.length * 3 / 4) {
+                resize();
+            }
+            return null;
+        }
+
+        /**
+         * @param timeNow The access time to record, or Long.MIN_VALUE for none.
+         */
+        synchronized V get(long key, long hash, long timeNow) {
+            int i = indexOf(key, hash);
+            if (values[i] == null) {
+                return null;
+            }
+
+            // Coalesce writes to within a clock tick, as ExpiringMap does.
+            if (timeNow != Long.MIN_VALUE && timeNow - times[i] >= CoarseClock.RESOLUTION_MILLIS) {
+                times[i] = timeNow;
+            }
+            return valueAt(i);
+        }
+
+        synchronized V remove(long key, long hash) {
+            int i = indexOf(key, hash);
+            if (values[i] == null) {
+                return null;
+            }
+
+            V old = valueAt(i);
+            delete(i);
+            return old;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            keys = new long[INITIAL_SEGMENT_CAPACITY];
+            values = new Object[INITIAL_SEGMENT_CAPACITY];
+            times = new long[INITIAL_SEGMENT_CAPACITY];
+            ttls = null;
+            size = 0;
+        }
+
+        synchronized void removeExpired(long timeNow, List<V> expired) {
+            long defaultTtl = timeToLiveMillis;
+            int i = 0;
+
+            while (i < values.length) {
+                if (values[i] == null) {
+                    i++;
+                    continue;
+                }
+
+                long ttl = ttls == null ? DEFAULT_TIME_TO_LIVE_MILLIS : ttls[i];
+                if (ttl == DEFAULT_TIME_TO_LIVE_MILLIS) {
+                    ttl = defaultTtl;
+                }
+
+                if (ttl > 0 && timeNow - times[i] >= ttl) {
+                    expired.add(valueAt(i));
+                    // An entry from later in the table may now be at i, so
+                    // look at i again.
+                    delete(i);
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private int indexOf(long key, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void set(int i, long key, V value, long timeNow, long ttl) {
+            keys[i] = key;
+            values[i] = value;
+            times[i] = timeNow;
+            if (ttls != null) {
+                ttls[i] = ttl;
+            }
+        }
+
+        /**
+         * Backward-shift deletion: move later entries of the probe chain
+         * into the gap, so lookups never need to skip removed slots.
+         */
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int gap = i;
+            int j = i;
+
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    break;
+                }
+
+                int home = (int) hash(keys[j]) & mask;
+                // Move j into the gap unless its home lies cyclically in (gap, j].
+                boolean between = gap <= j ? (gap < home && home <= j) : (gap < home || home <= j);
+                if (!between) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    times[gap] = times[j];
+                    if (ttls != null) {
+                        ttls[gap] = ttls[j];
+                    }
+                    gap = j;
+                }
+            }
+
+            values[gap] = null;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] oldTimes = times;
+            long[] oldTtls = ttls;
+            int capacity = oldKeys.length * 2;
+
+            keys = new long[capacity];
+            values = new Object[capacity];
+            times = new long[capacity];
+            ttls = oldTtls == null ? null : new long[capacity];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] == null) {
+                    continue;
+                }
+
+                int j = indexOf(oldKeys[i], hash(oldKeys[i]));
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                times[j] = oldTimes[i];
+                if (ttls != null) {
+                    ttls[j] = oldTtls[i];
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private V valueAt(int i) {
+            return (V) values[i];
+        }
+    }
+}
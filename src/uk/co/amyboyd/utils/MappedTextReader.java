@@ -0,0 +1,213 @@
+package uk.co.amyboyd.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes a file through a read-only mapping that slides forward a window at
+ * a time, so files of any size can be read in constant memory.
+ *
+ * <p>Not thread safe.
+ */
+final class MappedTextReader implements Closeable {
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    final private FileChannel channel;
+
+    final private long size;
+
+    final private CharsetDecoder decoder;
+
+    final private char[] chars = new char[CHUNK_SIZE];
+
+    final private CharBuffer chunk = CharBuffer.wrap(chars);
+
+    private long windowStart = 0;
+
+    private MappedByteBuffer window;
+
+    private boolean flushing = false;
+
+    private boolean done = false;
+
+    /**
+     * @param decoder Is reset, then used until the reader is closed.
+     */
+    MappedTextReader(final File source, final CharsetDecoder decoder) throws IOException {
+        this.channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        this.decoder = decoder.reset();
+
+        try {
+            this.size = channel.size();
+            this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW_SIZE));
+        } catch (final IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The next chunk of text, or null at the end of the file. The
+     *  buffer is reused by the next call.
+     * @throws IOException if the file is not valid in the charset and the
+     *  decoder reports errors.
+     */
+    CharBuffer next() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        chunk.clear();
+
+        while (chunk.hasRemaining()) {
+            if (!flushing) {
+                final boolean endOfInput = windowStart + window.limit() >= size;
+                final CoderResult result = decoder.decode(window, chunk, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (result.isOverflow()) {
+                    break;
+                }
+                if (!endOfInput) {
+                    slideWindow();
+                    continue;
+                }
+                flushing = true;
+            }
+
+            if (decoder.flush(chunk).isOverflow()) {
+                break;
+            }
+            done = true;
+            break;
+        }
+
+        chunk.flip();
+        return done && !chunk.hasRemaining() ? null : chunk;
+    }
+
+    /**
+     * Visit every chunk left.
+     *
+     * @return The number of chars visited.
+     */
+    long visit(final CharSequenceVisitor visitor) throws IOException {
+        long count = 0;
+
+        CharBuffer text;
+        while ((text = next()) != null) {
+            count += text.remaining();
+            visitor.visit(text);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The lines left, without their terminators ("\n", "\r\n" or
+     *  "\r"). Throws UncheckedIOException if the file cannot be read.
+     */
+    Iterator<String> lines() {
+        return new Iterator<String>() {
+            final private StringBuilder line = new StringBuilder();
+
+            private CharBuffer text;
+
+            private String nextLine;
+
+            private boolean skipLineFeed = false;
+
+            @Override
+            public boolean hasNext() {
+                if (nextLine == null) {
+                    try {
+                        nextLine = readLine();
+                    } catch (final IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+                return nextLine != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final String answer = nextLine;
+                nextLine = null;
+                return answer;
+            }
+
+            private String readLine() throws IOException {
+                while (true) {
+                    if (text == null || !text.hasRemaining()) {
+                        text = MappedTextReader.this.next();
+                        if (text == null) {
+                            return line.length() == 0 ? null : take();
+                        }
+                    }
+
+                    final int start = text.position();
+                    final int limit = text.limit();
+                    int i = start;
+
+                    if (skipLineFeed) {
+                        skipLineFeed = false;
+                        if (chars[i] == '\n') {
+                            text.position(++i);
+                            continue;
+                        }
+                    }
+
+                    while (i < limit && chars[i] != '\n' && chars[i] != '\r') {
+                        i++;
+                    }
+                    line.append(chars, start, i - start);
+
+                    if (i == limit) {
+                        text.position(limit);
+                        continue;
+                    }
+
+                    skipLineFeed = chars[i] == '\r';
+                    text.position(i + 1);
+                    return take();
+                }
+            }
+
+            private String take() {
+                final String answer = line.toString();
+                line.setLength(0);
+                return answer;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private void slideWindow() throws IOException {
+        // Bytes of a char split across the windows are mapped again.
+        windowStart += window.position();
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                Math.min(size - windowStart, WINDOW_SIZE));
+    }
+}
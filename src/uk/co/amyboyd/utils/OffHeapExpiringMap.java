@@ -0,0 +1,184 @@
+package uk.co.amyboyd.utils;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An expiring map of byte arrays whose contents are stored off-heap, in
+ * slabs of direct memory, so that large caches of serialized payloads do
+ * not churn the old generation as they expire.
+ *
+ * <p>Only a small handle per entry stays on the heap, in an
+ * {@link ExpiringMap} that provides the expiry, scheduling and eviction.
+ * When an entry expires, is evicted, replaced or removed, its space goes
+ * back to its size class immediately, and empty slabs are released.
+ *
+ * <p>Values are copied in by put and copied out by get, so callers may
+ * reuse their arrays.
+ */
+public class OffHeapExpiringMap<K> {
+    final private SlabAllocator allocator = new SlabAllocator();
+
+    final private ExpiringMap<K, SlabAllocator.Allocation> index;
+
+    final private CopyOnWriteArrayList<ExpirationListener<byte[]>> expirationListeners =
+            new CopyOnWriteArrayList<ExpirationListener<byte[]>>();
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     */
+    public OffHeapExpiringMap(int timeToLive, int expirationInterval) {
+        this(timeToLive, expirationInterval, ExpiringMap.ExpirationStrategy.SCAN, null);
+    }
+
+    /**
+     * @param timeToLive
+     *  The time-to-live value (seconds)
+     * @param expirationInterval
+     *  The time between checks to see if a value should be removed (seconds)
+     * @param expirationStrategy
+     *  How the expirer finds the values that should be removed
+     * @param scheduler
+     *  The scheduler to run the expirer on, or null for a dedicated thread
+     */
+    public OffHeapExpiringMap(int timeToLive, int expirationInterval,
+            ExpiringMap.ExpirationStrategy expirationStrategy, ExpirationScheduler scheduler) {
+        index = new ExpiringMap<K, SlabAllocator.Allocation>(timeToLive, expirationInterval,
+                expirationStrategy, scheduler);
+        index.addExpirationListener(new ExpirationListener<SlabAllocator.Allocation>() {
+            @Override
+            public void expired(SlabAllocator.Allocation allocation) {
+                expired(allocation, RemovalCause.EXPIRED);
+            }
+
+            @Override
+            public void expired(SlabAllocator.Allocation allocation, RemovalCause cause) {
+                try {
+                    // Only copy the value back on-heap if someone wants it.
+                    if (!expirationListeners.isEmpty()) {
+                        byte[] value = allocation.read();
+                        for (ExpirationListener<byte[]> listener: expirationListeners) {
+                            listener.expired(value, cause);
+                        }
+                    }
+                } finally {
+                    allocator.free(allocation);
+                }
+            }
+        });
+    }
+
+    public void put(K key, byte[] value) {
+        release(index.put(key, allocator.allocate(value)));
+    }
+
+    /**
+     * Put a value that has its own time-to-live, instead of the map's.
+     *
+     * @param timeToLive
+     *  The time-to-live value. Zero or less means the value never expires.
+     */
+    public void put(K key, byte[] value, long timeToLive, TimeUnit unit) {
+        release(index.put(key, allocator.allocate(value), timeToLive, unit));
+    }
+
+    /**
+     * @return A copy of the value, or null.
+     */
+    public byte[] get(K key) {
+        while (true) {
+            SlabAllocator.Allocation allocation = index.get(key);
+            if (allocation == null) {
+                return null;
+            }
+
+            byte[] value = allocation.read();
+            if (value != null) {
+                return value;
+            }
+            // Replaced or removed while we were copying it; look again.
+        }
+    }
+
+    /**
+     * @return True if the key had a value.
+     */
+    public boolean remove(K key) {
+        SlabAllocator.Allocation allocation = index.remove(key);
+        release(allocation);
+        return allocation != null;
+    }
+
+    public boolean containsKey(K key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    public void clear() {
+        for (K key: index.keySet()) {
+            remove(key);
+        }
+    }
+
+    public void addExpirationListener(ExpirationListener<byte[]> listener) {
+        expirationListeners.add(listener);
+    }
+
+    public void removeExpirationListener(ExpirationListener<byte[]> listener) {
+        expirationListeners.remove(listener);
+    }
+
+    /**
+     * Bound the map to a total number of value bytes. Works like
+     * {@link ExpiringMap#setMaximumWeight(long, Weigher)}.
+     */
+    public void setMaximumBytes(long maximumBytes) {
+        index.setMaximumWeight(maximumBytes, (k, allocation) -> allocation.getLength());
+    }
+
+    /**
+     * @return The on-heap index, for its expirer, time-to-live and statistics.
+     *  Do not put or remove entries through it.
+     */
+    public ExpiringMap<K, ?> getIndex() {
+        return index;
+    }
+
+    public void startExpiring() {
+        index.getExpirer().startExpiring();
+    }
+
+    public void stopExpiring() {
+        index.getExpirer().stopExpiring();
+    }
+
+    /**
+     * @return The off-heap memory held in slabs, including free slots.
+     */
+    public long getReservedBytes() {
+        return allocator.getReservedBytes();
+    }
+
+    /**
+     * @return The off-heap memory holding values.
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    private void release(SlabAllocator.Allocation allocation) {
+        if (allocation != null) {
+            allocator.free(allocation);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package uk.co.amyboyd.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression on many threads, in the manner of pigz.
+ *
+ * <p>The input is split into blocks which are deflated in parallel. Each
+ * block is primed with the last 32 KB of the block before it, so the
+ * compression ratio is close to that of a single stream, and all but the
+ * last block end with a sync flush so that they can be joined into one
+ * deflate stream. The CRC is computed as the blocks are read. The output is
+ * a standard single-member gzip file.
+ */
+final class ParallelGzip {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private ParallelGzip() {
+    }
+
+    /**
+     * Compress everything left in the input to the output. Neither stream is
+     * closed.
+     *
+     * @param level 0 to 9, or -1 for the default.
+     * @param blockSize Bytes of input per block.
+     * @return The number of bytes read.
+     */
+    static long compress(final InputStream in, final OutputStream out, final int level,
+            final int blockSize, final ForkJoinPool pool) throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+
+        // Enough blocks in flight to keep the pool busy while one is written.
+        final int maxInFlight = pool.getParallelism() * 2 + 1;
+        final Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<ForkJoinTask<byte[]>>();
+        final CRC32 crc = new CRC32();
+        long total = 0;
+
+        out.write(GzipCodec.HEADER);
+
+        try {
+            byte[] previous = null;
+            byte[] current = readBlock(in, blockSize);
+
+            while (true) {
+                // A short block is the end of the input.
+                final byte[] next = current.length == blockSize ? readBlock(in, blockSize) : EMPTY;
+                final boolean last = next.length == 0;
+
+                crc.update(current);
+                total += current.length;
+
+                final byte[] dictionary = previous;
+                final byte[] block = current;
+                inFlight.add(pool.submit(() -> deflateBlock(dictionary, block, level, last)));
+
+                while (inFlight.size() >= maxInFlight) {
+                    out.write(inFlight.poll().join());
+                }
+
+                if (last) {
+                    break;
+                }
+                previous = current;
+                current = next;
+            }
+
+            while (!inFlight.isEmpty()) {
+                out.write(inFlight.poll().join());
+            }
+        } catch (final RuntimeException ex) {
+            for (final ForkJoinTask<byte[]> task: inFlight) {
+                task.cancel(true);
+            }
+            throw new IOException("Compression failed: " + ex.getMessage(), ex);
+        } catch (final IOException ex) {
+            for (final ForkJoinTask<byte[]> task: inFlight) {
+                task.cancel(true);
+            }
+            throw ex;
+        }
+
+        writeIntLE(out, crc.getValue());
+        writeIntLE(out, total);
+        return total;
+    }
+
+    /**
+     * Deflate one block, without a zlib header.
+     *
+     * @param dictionary The block before, or null if this is the first.
+     * @param last Whether to end the deflate stream, rather than flush to a
+     *  byte boundary.
+     */
+    private static byte[] deflateBlock(final byte[] dictionary, final byte[] block,
+            final int level, final boolean last) {
+        final Deflater deflater = ZlibPool.deflater(level);
+
+        try {
+            if (dictionary != null) {
+                final int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+            deflater.setInput(block);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + 64);
+            final byte[] buf = new byte[OUTPUT_BUFFER_SIZE];
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                // A full buffer may mean there is more to flush.
+                int len;
+                do {
+                    len = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    out.write(buf, 0, len);
+                } while (len == buf.length);
+            }
+
+            return out.toByteArray();
+        } finally {
+            ZlibPool.release(deflater, level);
+        }
+    }
+
+    /**
+     * @return Up to blockSize bytes; fewer only at the end of the input.
+     */
+    private static byte[] readBlock(final InputStream in, final int blockSize) throws IOException {
+        final byte[] block = new byte[blockSize];
+        int filled = 0;
+
+        while (filled < blockSize) {
+            final int len = in.read(block, filled, blockSize - filled);
+            if (len == -1) {
+                break;
+            }
+            filled += len;
+        }
+
+        if (filled == blockSize) {
+            return block;
+        }
+        return filled == 0 ? EMPTY : Arrays.copyOf(block, filled);
+    }
+
+    private static void writeIntLE(final OutputStream out, final long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >>> 8) & 0xff);
+        out.write((int) (value >>> 16) & 0xff);
+        out.write((int) (value >>> 24) & 0xff);
+    }
+}
@@ -0,0 +1,9 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * Told how far a copy has got, after each chunk and once at the end.
+ * Called on the copying thread, so it should be quick.
+ */
+public interface ProgressListener {
+    void progress(TransferProgress progress);
+}
@@ -0,0 +1,537 @@
+package uk.co.amyboyd.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one URL with HTTP Range requests, used by
+ * {@link FileUtils#download(URL, File, int, ProgressListener)}.
+ *
+ * <p>The object is split into segments which are fetched in parallel and
+ * written straight to their offsets in "name.part". How far each segment has
+ * got is kept in "name.part.state", so a download that fails can be resumed
+ * by calling it again, as long as the server still has the same version of
+ * the object (the same ETag or Last-Modified). When every segment is
+ * complete the file is checked, against the Digest or Content-MD5 header if
+ * the server sent one, and renamed.
+ *
+ * <p>If the server does not support ranges, or does not say how large the
+ * object is, it is downloaded in one piece.
+ */
+final class RangedDownload {
+    private static final int STATE_MAGIC = 0x52414e47;
+
+    private static final long MIN_SEGMENT_SIZE = 1L << 20;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How much a segment fetches between saves of its progress.
+     */
+    private static final long STATE_SAVE_INTERVAL = 1L << 20;
+
+    private static final long PROGRESS_CHUNK_SIZE = 8L << 20;
+
+    private static final int MAX_SEGMENT_RETRIES = 5;
+
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * The object changed on the server, or the server stopped honouring
+     * ranges, so what has been fetched so far cannot be used.
+     */
+    private static final class ObjectChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ObjectChangedException(final String message) {
+            super(message);
+        }
+    }
+
+    final private URL url;
+
+    final private File destination;
+
+    final private File part;
+
+    final private File stateFile;
+
+    final private ProgressListener listener;
+
+    final private AtomicLong bytesFetched = new AtomicLong();
+
+    private long nextReport = PROGRESS_CHUNK_SIZE;
+
+    private long startNanos;
+
+    private long length;
+
+    private String validator;
+
+    private String digest;
+
+    private long[] segmentDone;
+
+    private FileChannel stateChannel;
+
+    private int stateHeaderSize;
+
+    RangedDownload(final URL url, final File destination, final ProgressListener listener) {
+        this.url = url;
+        this.destination = destination;
+        this.part = new File(destination.getPath() + ".part");
+        this.stateFile = new File(destination.getPath() + ".part.state");
+        this.listener = listener;
+    }
+
+    /**
+     * @return The bytes fetched by this call (not counting any fetched by
+     *  earlier calls), and how long it took.
+     */
+    TransferProgress run(final int segments) throws IOException {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("Segments must be positive: " + segments);
+        }
+
+        startNanos = System.nanoTime();
+        final File parent = destination.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        try {
+            fetch(segments);
+        } catch (final ObjectChangedException ex) {
+            // Start again from nothing, once.
+            part.delete();
+            stateFile.delete();
+            fetch(segments);
+        }
+
+        verify();
+        Files.move(part.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        stateFile.delete();
+
+        final TransferProgress progress = new TransferProgress(bytesFetched.get(), length,
+                System.nanoTime() - startNanos);
+        if (listener != null) {
+            listener.progress(progress);
+        }
+        return progress;
+    }
+
+    private void fetch(final int segments) throws IOException {
+        final boolean ranges = head();
+
+        if (!ranges) {
+            fetchWhole();
+            return;
+        }
+
+        final int count = (int) Math.max(1, Math.min(segments,
+                (length + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE));
+
+        try (FileChannel data = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            openState(count);
+
+            try {
+                fetchSegments(data);
+                data.force(false);
+            } finally {
+                stateChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Ask the server about the object.
+     *
+     * @return Whether it can be fetched in ranges.
+     */
+    private boolean head() throws IOException {
+        final HttpURLConnection conn = open();
+        conn.setRequestMethod("HEAD");
+
+        try {
+            final int code = conn.getResponseCode();
+            if (code >= 400) {
+                throw new IOException("HTTP " + code + " from " + url);
+            }
+
+            length = conn.getContentLengthLong();
+            final String etag = conn.getHeaderField("ETag");
+            validator = etag != null && !etag.startsWith("W/")
+                    ? etag
+                    : conn.getHeaderField("Last-Modified");
+            digest = expectedDigest(conn);
+
+            return length >= 0 && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Download in one piece, for servers that do not support ranges.
+     */
+    private void fetchWhole() throws IOException {
+        stateFile.delete();
+        final HttpURLConnection conn = open();
+
+        try (InputStream in = conn.getInputStream();
+                FileChannel data = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            long position = 0;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                writeFully(data, ByteBuffer.wrap(buf, 0, len), position);
+                position += len;
+                fetched(len);
+            }
+            data.force(false);
+
+            if (length < 0) {
+                length = position;
+            }
+        }
+
+        segmentDone = null;
+    }
+
+    private void fetchSegments(final FileChannel data) throws IOException {
+        final int count = segmentDone.length;
+        final ExecutorService executor = VirtualThreads.newExecutor("RangedDownload");
+
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>(count);
+            for (int i = 0; i < count; i++) {
+                final int segment = i;
+                futures.add(executor.submit(() -> {
+                    fetchSegment(data, segment);
+                    return null;
+                }));
+            }
+
+            for (final Future<?> future: futures) {
+                future.get();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted: " + url);
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Download failed: " + url, ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void fetchSegment(final FileChannel data, final int segment) throws IOException,
+            InterruptedException {
+        final long start = segmentStart(segment);
+        final long end = segmentStart(segment + 1);
+        int retries = 0;
+
+        while (start + segmentDone[segment] < end) {
+            final long before = segmentDone[segment];
+
+            try {
+                fetchRange(data, segment, start + before, end);
+            } catch (final ObjectChangedException ex) {
+                throw ex;
+            } catch (final IOException ex) {
+                // Only attempts that got nowhere count against the limit.
+                if (segmentDone[segment] > before) {
+                    retries = 0;
+                }
+                if (Thread.currentThread().isInterrupted() || ++retries > MAX_SEGMENT_RETRIES) {
+                    throw ex;
+                }
+                Thread.sleep(RETRY_BACKOFF_MILLIS << (retries - 1));
+            }
+        }
+    }
+
+    private void fetchRange(final FileChannel data, final int segment, final long from, final long end)
+            throws IOException {
+        final HttpURLConnection conn = open();
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + (end - 1));
+        if (validator != null) {
+            conn.setRequestProperty("If-Range", validator);
+        }
+
+        try {
+            final int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                throw new ObjectChangedException("Range not honoured by " + url);
+            }
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code + " from " + url);
+            }
+            final String contentRange = conn.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + from + "-")) {
+                throw new ObjectChangedException("Unexpected Content-Range from " + url + ": " + contentRange);
+            }
+
+            final long start = segmentStart(segment);
+            final byte[] buf = new byte[BUFFER_SIZE];
+            long position = from;
+            long lastSaved = from;
+
+            try (InputStream in = conn.getInputStream()) {
+                int len;
+                while (position < end && (len = in.read(buf, 0, (int) Math.min(buf.length, end - position))) != -1) {
+                    writeFully(data, ByteBuffer.wrap(buf, 0, len), position);
+                    position += len;
+                    fetched(len);
+
+                    if (position - lastSaved >= STATE_SAVE_INTERVAL) {
+                        saveProgress(segment, position - start);
+                        lastSaved = position;
+                    }
+                }
+
+                if (position < end) {
+                    throw new IOException("Connection closed early by " + url);
+                }
+            } finally {
+                saveProgress(segment, position - start);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Load the progress of an earlier attempt at the same object, or start
+     * a new state file.
+     */
+    private void openState(final int count) throws IOException {
+        final byte[] validatorBytes = validator == null
+                ? new byte[0]
+                : validator.getBytes(StandardCharsets.UTF_8);
+        stateHeaderSize = 4 + 8 + 4 + 4 + validatorBytes.length;
+
+        if (validator != null && stateFile.exists() && part.exists()) {
+            final long[] done = readState(validatorBytes);
+            if (done != null) {
+                segmentDone = done;
+                stateChannel = FileChannel.open(stateFile.toPath(), StandardOpenOption.WRITE);
+                return;
+            }
+        }
+
+        segmentDone = new long[count];
+        try (FileChannel data = FileChannel.open(part.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Sparse where the file system allows it.
+            if (length > 0) {
+                writeFully(data, ByteBuffer.allocate(1), length - 1);
+            }
+        }
+
+        stateChannel = FileChannel.open(stateFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        final ByteBuffer header = ByteBuffer.allocate(stateHeaderSize + 8 * count);
+        header.putInt(STATE_MAGIC).putLong(length).putInt(count)
+                .putInt(validatorBytes.length).put(validatorBytes);
+        header.flip();
+        writeFully(stateChannel, header, 0);
+    }
+
+    /**
+     * @return The progress of each segment, or null if the state is for a
+     *  different version of the object.
+     */
+    private long[] readState(final byte[] validatorBytes) throws IOException {
+        final byte[] bytes = Files.readAllBytes(stateFile.toPath());
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        if (bytes.length < stateHeaderSize || in.getInt() != STATE_MAGIC || in.getLong() != length) {
+            return null;
+        }
+        final int count = in.getInt();
+        if (count <= 0 || in.getInt() != validatorBytes.length) {
+            return null;
+        }
+        final byte[] saved = new byte[validatorBytes.length];
+        in.get(saved);
+        if (!Arrays.equals(saved, validatorBytes) || in.remaining() != 8 * count) {
+            return null;
+        }
+
+        final long[] done = new long[count];
+        for (int i = 0; i < count; i++) {
+            done[i] = in.getLong();
+            if (done[i] < 0 || done[i] > segmentStart(i + 1, count) - segmentStart(i, count)) {
+                return null;
+            }
+        }
+        return done;
+    }
+
+    private void saveProgress(final int segment, final long done) throws IOException {
+        segmentDone[segment] = done;
+
+        final ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(done).flip();
+        writeFully(stateChannel, buf, stateHeaderSize + 8L * segment);
+    }
+
+    /**
+     * Check that the whole object has been fetched, and matches the digest
+     * the server gave.
+     */
+    private void verify() throws IOException {
+        if (segmentDone != null) {
+            for (int i = 0; i < segmentDone.length; i++) {
+                if (segmentDone[i] != segmentStart(i + 1) - segmentStart(i)) {
+                    throw new IOException("Segment " + i + " incomplete: " + url);
+                }
+            }
+        }
+
+        if (part.length() != length) {
+            throw new IOException("Expected " + length + " bytes but have " + part.length() + ": " + url);
+        }
+
+        if (digest == null) {
+            return;
+        }
+
+        final int separator = digest.indexOf('=');
+        final String algorithm = digest.substring(0, separator);
+        final byte[] expected = Base64.getDecoder().decode(digest.substring(separator + 1));
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (final NoSuchAlgorithmException ex) {
+            return;
+        }
+
+        try (FileChannel data = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            while (data.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+
+        if (!MessageDigest.isEqual(expected, md.digest())) {
+            // Nothing fetched so far can be trusted.
+            part.delete();
+            stateFile.delete();
+            throw new IOException(algorithm + " digest does not match: " + url);
+        }
+    }
+
+    /**
+     * @return "ALGORITHM=base64" from a Digest, Repr-Digest or Content-MD5
+     *  header, preferring SHA-256, or null if there is none.
+     */
+    private static String expectedDigest(final HttpURLConnection conn) {
+        String md5 = null;
+
+        for (final String header: new String[] {"Repr-Digest", "Digest"}) {
+            final String value = conn.getHeaderField(header);
+            if (value == null) {
+                continue;
+            }
+
+            for (final String item: value.split(",")) {
+                final int eq = item.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                final String name = item.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                final String hash = item.substring(eq + 1).trim().replace(":", "");
+                if ("sha-256".equals(name)) {
+                    return "SHA-256=" + hash;
+                }
+                if ("md5".equals(name)) {
+                    md5 = "MD5=" + hash;
+                }
+            }
+        }
+
+        final String contentMd5 = conn.getHeaderField("Content-MD5");
+        if (md5 == null && contentMd5 != null) {
+            md5 = "MD5=" + contentMd5.trim();
+        }
+        return md5;
+    }
+
+    private void fetched(final int bytes) {
+        final long total = bytesFetched.addAndGet(bytes);
+
+        if (listener != null && total >= nextReport) {
+            synchronized (this) {
+                if (total >= nextReport) {
+                    nextReport = total + PROGRESS_CHUNK_SIZE;
+                    listener.progress(new TransferProgress(total, length, System.nanoTime() - startNanos));
+                }
+            }
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        if (!url.getProtocol().startsWith("http")) {
+            throw new IOException("Not an HTTP URL: " + url);
+        }
+
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setInstanceFollowRedirects(true);
+        // Ranges of a compressed body would be ranges of the wrong bytes.
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        return conn;
+    }
+
+    private long segmentStart(final int segment) {
+        return segmentStart(segment, segmentDone.length);
+    }
+
+    private long segmentStart(final int segment, final int count) {
+        // Overflow-safe length * segment / count.
+        return length / count * segment + length % count * segment / count;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * Why an entry was removed from an {@link ExpiringMap} by the map itself.
+ */
+public enum RemovalCause {
+    /**
+     * The entry's time-to-live passed.
+     */
+    EXPIRED,
+
+    /**
+     * The entry was evicted because the map was over its maximum size or
+     * weight.
+     */
+    SIZE
+}
@@ -0,0 +1,45 @@
+package uk.co.amyboyd.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts keys or values to and from bytes.
+ *
+ * @see ExpiringMapSnapshot
+ */
+public interface Serializer<T> {
+    /**
+     * UTF-8 strings.
+     */
+    Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public byte[] serialize(final String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(final byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Byte arrays, as they are.
+     */
+    Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+        @Override
+        public byte[] serialize(final byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] deserialize(final byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    byte[] serialize(T value) throws IOException;
+
+    T deserialize(byte[] bytes) throws IOException;
+}
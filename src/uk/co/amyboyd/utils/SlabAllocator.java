@@ -0,0 +1,225 @@
+package uk.co.amyboyd.utils;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates space for byte arrays in direct (off-heap) buffers, for
+ * {@link OffHeapExpiringMap}.
+ *
+ * <p>Space comes from 1 MB slabs, each split into equal slots of one size
+ * class (powers of two from 64 bytes to 1 MB). Values larger than 1 MB get a
+ * buffer of their own. When a slab's last slot is freed and its size class
+ * already has an empty slab spare, the slab is released, so memory goes back
+ * as entries expire instead of staying reserved for the peak.
+ *
+ * <p>The JVM frees a released slab's native memory when the garbage
+ * collector finds its buffer unreachable.
+ */
+final class SlabAllocator {
+    private static final int MIN_CLASS_SHIFT = 6;
+
+    private static final int MAX_CLASS_SHIFT = 20;
+
+    private static final int SLAB_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    /**
+     * Empty slabs kept per size class for reuse.
+     */
+    private static final int SPARE_SLABS = 1;
+
+    final private SizeClass[] sizeClasses = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    final private AtomicLong reservedBytes = new AtomicLong();
+
+    final private AtomicLong usedBytes = new AtomicLong();
+
+    SlabAllocator() {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+        }
+    }
+
+    /**
+     * Copy the bytes off-heap.
+     */
+    Allocation allocate(final byte[] bytes) {
+        final int length = bytes.length;
+        final Allocation allocation;
+
+        if (length > SLAB_SIZE) {
+            final Slab slab = new Slab(ByteBuffer.allocateDirect(length), 1);
+            reservedBytes.addAndGet(length);
+            slab.freeCount = 0;
+            allocation = new Allocation(null, slab, 0, length);
+        } else {
+            allocation = sizeClassFor(length).allocate(length);
+        }
+
+        // The slot is ours alone until the allocation is published.
+        allocation.slab.buffer.put(allocation.offset, bytes, 0, length);
+        usedBytes.addAndGet(length);
+        return allocation;
+    }
+
+    /**
+     * Return the allocation's space. Readers that were copying it will see
+     * that it was freed, and must not use what they copied.
+     */
+    void free(final Allocation allocation) {
+        if (allocation.freed) {
+            throw new IllegalStateException("Already freed.");
+        }
+
+        allocation.freed = true;
+        usedBytes.addAndGet(-allocation.length);
+
+        if (allocation.sizeClass == null) {
+            reservedBytes.addAndGet(-allocation.slab.buffer.capacity());
+            return;
+        }
+        allocation.sizeClass.free(allocation);
+    }
+
+    /**
+     * @return The capacity of every slab currently held.
+     */
+    long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return The bytes of every live allocation.
+     */
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    private SizeClass sizeClassFor(final int length) {
+        final int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        return sizeClasses[shift - MIN_CLASS_SHIFT];
+    }
+
+    /**
+     * Space for one value.
+     */
+    static final class Allocation {
+        final private SizeClass sizeClass;
+
+        final private Slab slab;
+
+        final private int offset;
+
+        final private int length;
+
+        private volatile boolean freed;
+
+        Allocation(final SizeClass sizeClass, final Slab slab, final int offset, final int length) {
+            this.sizeClass = sizeClass;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * @return A copy of the bytes, or null if the allocation was freed
+         *  before or during the copy.
+         */
+        byte[] read() {
+            if (freed) {
+                return null;
+            }
+
+            final byte[] bytes = new byte[length];
+            slab.buffer.get(offset, bytes, 0, length);
+
+            // The copy must be complete before checking it was not freed
+            // (and perhaps reused) meanwhile.
+            VarHandle.loadLoadFence();
+            return freed ? null : bytes;
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer buffer;
+
+        final int[] freeSlots;
+
+        int freeCount;
+
+        Slab(final ByteBuffer buffer, final int slotCount) {
+            this.buffer = buffer;
+            this.freeSlots = new int[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                freeSlots[i] = slotCount - 1 - i;
+            }
+            this.freeCount = slotCount;
+        }
+
+        boolean isEmpty() {
+            return freeCount == freeSlots.length;
+        }
+    }
+
+    private final class SizeClass {
+        final private int slotSize;
+
+        final private int slotsPerSlab;
+
+        /**
+         * Slabs with at least one free slot.
+         */
+        final private ArrayDeque<Slab> available = new ArrayDeque<Slab>();
+
+        private int emptySlabs;
+
+        SizeClass(final int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerSlab = SLAB_SIZE / slotSize;
+        }
+
+        synchronized Allocation allocate(final int length) {
+            Slab slab = available.peekFirst();
+            if (slab == null) {
+                slab = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE), slotsPerSlab);
+                reservedBytes.addAndGet(SLAB_SIZE);
+                available.addFirst(slab);
+                emptySlabs++;
+            }
+
+            if (slab.isEmpty()) {
+                emptySlabs--;
+            }
+            final int slot = slab.freeSlots[--slab.freeCount];
+            if (slab.freeCount == 0) {
+                available.pollFirst();
+            }
+
+            return new Allocation(this, slab, slot * slotSize, length);
+        }
+
+        synchronized void free(final Allocation allocation) {
+            final Slab slab = allocation.slab;
+            if (slab.freeCount == 0) {
+                available.addLast(slab);
+            }
+
+            slab.freeSlots[slab.freeCount++] = allocation.offset / slotSize;
+
+            if (slab.isEmpty()) {
+                if (emptySlabs >= SPARE_SLABS) {
+                    available.remove(slab);
+                    reservedBytes.addAndGet(-SLAB_SIZE);
+                } else {
+                    emptySlabs++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package uk.co.amyboyd.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the statistics of an {@link ExpiringMap}. This base class records
+ * nothing, and is what a map uses while statistics are disabled; its methods
+ * are empty so the JIT can remove the calls.
+ */
+class StatsCounter {
+    static final StatsCounter DISABLED = new StatsCounter();
+
+    void recordHit() {
+    }
+
+    void recordMiss() {
+    }
+
+    void recordPut() {
+    }
+
+    void recordExpiration() {
+    }
+
+    void recordEviction() {
+    }
+
+    /**
+     * @return A start time to pass to a record*Time method, or 0 if
+     *  statistics are disabled (so the clock is not read).
+     */
+    long startTimer() {
+        return 0;
+    }
+
+    void recordScanTime(final long start) {
+    }
+
+    void recordListenerTime(final long start) {
+    }
+
+    ExpiringMapStats snapshot() {
+        return ExpiringMapStats.EMPTY;
+    }
+
+    /**
+     * Counts everything, with striped counters so that threads recording at
+     * the same time do not contend.
+     */
+    static final class Concurrent extends StatsCounter {
+        final private LongAdder hitCount = new LongAdder();
+
+        final private LongAdder missCount = new LongAdder();
+
+        final private LongAdder putCount = new LongAdder();
+
+        final private LongAdder expirationCount = new LongAdder();
+
+        final private LongAdder evictionCount = new LongAdder();
+
+        final private LatencyHistogram scanTime = new LatencyHistogram();
+
+        final private LatencyHistogram listenerTime = new LatencyHistogram();
+
+        @Override
+        void recordHit() {
+            hitCount.increment();
+        }
+
+        @Override
+        void recordMiss() {
+            missCount.increment();
+        }
+
+        @Override
+        void recordPut() {
+            putCount.increment();
+        }
+
+        @Override
+        void recordExpiration() {
+            expirationCount.increment();
+        }
+
+        @Override
+        void recordEviction() {
+            evictionCount.increment();
+        }
+
+        @Override
+        long startTimer() {
+            return System.nanoTime();
+        }
+
+        @Override
+        void recordScanTime(final long start) {
+            scanTime.record(System.nanoTime() - start);
+        }
+
+        @Override
+        void recordListenerTime(final long start) {
+            listenerTime.record(System.nanoTime() - start);
+        }
+
+        @Override
+        ExpiringMapStats snapshot() {
+            return new ExpiringMapStats(hitCount.sum(), missCount.sum(), putCount.sum(),
+                    expirationCount.sum(), evictionCount.sum(),
+                    scanTime.snapshot(), listenerTime.snapshot());
+        }
+    }
+
+    /**
+     * Durations in power-of-two nanosecond buckets.
+     */
+    static final class LatencyHistogram {
+        final private LongAdder[] buckets = new LongAdder[64];
+
+        final private LongAdder totalNanos = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(final long nanos) {
+            final long n = Math.max(0, nanos);
+            buckets[64 - Long.numberOfLeadingZeros(n)].increment();
+            totalNanos.add(n);
+        }
+
+        ExpiringMapStats.Histogram snapshot() {
+            final long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return new ExpiringMapStats.Histogram(counts, totalNanos.sum());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.amyboyd.utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a directory sync did.
+ *
+ * @see DirectorySync
+ */
+public final class SyncResult {
+    final private long filesCopied;
+
+    final private long filesSkipped;
+
+    final private long filesDeleted;
+
+    final private long bytesCopied;
+
+    final private long elapsedNanos;
+
+    final private List<IOException> errors;
+
+    SyncResult(final long filesCopied, final long filesSkipped, final long filesDeleted,
+            final long bytesCopied, final long elapsedNanos, final List<IOException> errors) {
+        this.filesCopied = filesCopied;
+        this.filesSkipped = filesSkipped;
+        this.filesDeleted = filesDeleted;
+        this.bytesCopied = bytesCopied;
+        this.elapsedNanos = elapsedNanos;
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    public long getFilesCopied() {
+        return filesCopied;
+    }
+
+    /**
+     * @return The files left alone because they had not changed.
+     */
+    public long getFilesSkipped() {
+        return filesSkipped;
+    }
+
+    /**
+     * @return The files and directories removed from the target because
+     *  they are not in the source.
+     */
+    public long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isSuccess() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return Why files could not be read, copied or deleted. The sync
+     *  carries on past them.
+     */
+    public List<IOException> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return filesCopied + " copied (" + bytesCopied + " bytes), " + filesSkipped + " unchanged, "
+                + filesDeleted + " deleted, " + errors.size() + " errors in "
+                + (elapsedNanos / 1000000) + " ms";
+    }
+}
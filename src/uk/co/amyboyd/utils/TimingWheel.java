@@ -0,0 +1,294 @@
+package uk.co.amyboyd.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hierarchical timing wheel, used by {@link ExpiringMap} to find the entries
+ * that are due without scanning the whole map.
+ *
+ * <p>Each level has 64 buckets; a bucket on level 0 covers one tick, a bucket
+ * on level 1 covers 64 ticks, and so on. Items far in the future sit on the
+ * coarse levels and are cascaded down as the wheel turns, so advancing by one
+ * tick only touches the items that are (nearly) due.
+ *
+ * <p>{@link #schedule(Object)} and {@link #cancel(Node)} may be called from
+ * any thread and never block. Scheduled items are placed into the wheel, and
+ * cancelled ones taken out, by the thread that calls {@link #advance(long)}.
+ * An item may be returned before its deadline if its deadline has moved since
+ * it was scheduled, so callers must re-check each item and schedule it again
+ * if it is not yet due.
+ */
+final class TimingWheel<T> {
+    private static final int WHEEL_BITS = 6;
+
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final int LEVELS = 4;
+
+    /**
+     * An item's place in the wheel. The links are guarded by the wheel's
+     * lock; a node is in a bucket while prev is not null.
+     */
+    static final class Node<T> {
+        final T item;
+
+        volatile boolean cancelled;
+
+        Node<T> prev;
+
+        Node<T> next;
+
+        Node(final T item) {
+            this.item = item;
+        }
+    }
+
+    final private ToLongFunction<T> deadlineFunction;
+
+    final private ConcurrentLinkedQueue<Node<T>> pending = new ConcurrentLinkedQueue<Node<T>>();
+
+    final private ConcurrentLinkedQueue<Node<T>> cancelled = new ConcurrentLinkedQueue<Node<T>>();
+
+    /**
+     * The sentinel of each bucket's list.
+     */
+    final private List<Node<T>> buckets;
+
+    private long tickMillis;
+
+    private long currentTick;
+
+    /**
+     * @param deadlineFunction Returns the time (milliseconds) at which an item is due.
+     *  Long.MAX_VALUE means never.
+     * @param tickMillis The resolution of the wheel.
+     * @param timeNow The current time (milliseconds).
+     */
+    TimingWheel(final ToLongFunction<T> deadlineFunction, final long tickMillis, final long timeNow) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+
+        this.deadlineFunction = deadlineFunction;
+        this.tickMillis = tickMillis;
+        this.currentTick = timeNow / tickMillis;
+        this.buckets = new ArrayList<Node<T>>(LEVELS * WHEEL_SIZE);
+        for (int i = 0; i < LEVELS * WHEEL_SIZE; i++) {
+            final Node<T> sentinel = new Node<T>(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            buckets.add(sentinel);
+        }
+    }
+
+    /**
+     * Add an item to the wheel. The item will be placed on the next call to
+     * {@link #advance(long)}.
+     *
+     * @return The item's node, to cancel it with.
+     */
+    Node<T> schedule(final T item) {
+        final Node<T> node = new Node<T>(item);
+        pending.add(node);
+        return node;
+    }
+
+    /**
+     * Take an item out of the wheel, e.g. because it has been replaced. It
+     * will not be returned by {@link #advance(long)}, and is unlinked on the
+     * next call.
+     */
+    void cancel(final Node<T> node) {
+        node.cancelled = true;
+        cancelled.add(node);
+    }
+
+    /**
+     * Turn the wheel up to the given time.
+     *
+     * @return The items whose bucket has come due, in no particular order.
+     */
+    synchronized List<T> advance(final long timeNow) {
+        final List<T> due = new ArrayList<T>();
+        final long targetTick = timeNow / tickMillis;
+
+        drainCancelled();
+        drainPending(due);
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // Cascade the coarser levels first so that items land in the
+            // level 0 bucket that is about to be fired.
+            int level = 1;
+            while (level < LEVELS && (currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (int l = level - 1; l >= 1; l--) {
+                cascade(l, due);
+            }
+
+            Node<T> node = takeBucket(0, (int) (currentTick & WHEEL_MASK));
+            while (node != null) {
+                final Node<T> next = detach(node);
+                if (!node.cancelled) {
+                    due.add(node.item);
+                }
+                node = next;
+            }
+        }
+
+        return due;
+    }
+
+    /**
+     * Re-place every item, e.g. because their deadlines have all changed.
+     */
+    synchronized void rescheduleAll() {
+        for (int i = 0; i < buckets.size(); i++) {
+            Node<T> node = takeBucket(i);
+            while (node != null) {
+                final Node<T> next = detach(node);
+                pending.add(node);
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Change the resolution of the wheel. Every item is re-placed.
+     */
+    synchronized void setTickMillis(final long tickMillis, final long timeNow) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+
+        rescheduleAll();
+        this.tickMillis = tickMillis;
+        this.currentTick = timeNow / tickMillis;
+    }
+
+    /**
+     * Remove every item.
+     */
+    synchronized void clear() {
+        pending.clear();
+        cancelled.clear();
+        for (int i = 0; i < buckets.size(); i++) {
+            // Unlink the nodes too, so that cancelling one later is harmless.
+            Node<T> node = takeBucket(i);
+            while (node != null) {
+                node = detach(node);
+            }
+        }
+    }
+
+    private void drainCancelled() {
+        Node<T> node;
+        while ((node = cancelled.poll()) != null) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+                node.prev = null;
+                node.next = null;
+            }
+        }
+    }
+
+    private void drainPending(final List<T> due) {
+        Node<T> node;
+        while ((node = pending.poll()) != null) {
+            place(node, due);
+        }
+    }
+
+    private void cascade(final int level, final List<T> due) {
+        final int index = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+
+        Node<T> node = takeBucket(level, index);
+        while (node != null) {
+            final Node<T> next = detach(node);
+            place(node, due);
+            node = next;
+        }
+    }
+
+    private Node<T> takeBucket(final int level, final int index) {
+        return takeBucket(level * WHEEL_SIZE + index);
+    }
+
+    /**
+     * Empty a bucket.
+     *
+     * @return The first of its nodes, still linked to the others by next;
+     *  or null if it was empty.
+     */
+    private Node<T> takeBucket(final int i) {
+        final Node<T> sentinel = buckets.get(i);
+        if (sentinel.next == sentinel) {
+            return null;
+        }
+
+        final Node<T> first = sentinel.next;
+        sentinel.prev.next = null;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        return first;
+    }
+
+    /**
+     * Clear the links of a node taken from a bucket.
+     *
+     * @return The next node of the bucket, or null.
+     */
+    private Node<T> detach(final Node<T> node) {
+        final Node<T> next = node.next;
+        node.prev = null;
+        node.next = null;
+        return next;
+    }
+
+    private void place(final Node<T> node, final List<T> due) {
+        if (node.cancelled) {
+            return;
+        }
+
+        final T item = node.item;
+        final long deadline = deadlineFunction.applyAsLong(item);
+        final long maxDelta = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+        // Round up, so an item is never due before its deadline.
+        long tick = deadline == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : deadline / tickMillis + (deadline % tickMillis == 0 ? 0 : 1);
+
+        if (tick <= currentTick) {
+            due.add(item);
+            return;
+        }
+
+        // Beyond the range of the wheel; park it in the furthest bucket and
+        // place it again when that bucket is cascaded.
+        if (tick - currentTick > maxDelta) {
+            tick = currentTick + maxDelta;
+        }
+
+        final long delta = tick - currentTick;
+        int level = 0;
+        while (delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+
+        final int index = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        final Node<T> sentinel = buckets.get(level * WHEEL_SIZE + index);
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+}
@@ -0,0 +1,58 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * An immutable snapshot of how far a copy has got.
+ *
+ * @see ProgressListener
+ */
+public final class TransferProgress {
+    final private long bytesDone;
+
+    final private long bytesTotal;
+
+    final private long elapsedNanos;
+
+    TransferProgress(final long bytesDone, final long bytesTotal, final long elapsedNanos) {
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    /**
+     * @return The size of the source, or -1 if it is not known.
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return The fraction done, 0 to 1, or -1 if the size is not known.
+     */
+    public double getFractionDone() {
+        if (bytesTotal < 0) {
+            return -1;
+        }
+        return bytesTotal == 0 ? 1.0 : (double) bytesDone / bytesTotal;
+    }
+
+    /**
+     * @return The average throughput so far, or 0 if no time has passed.
+     */
+    public double getBytesPerSecond() {
+        return elapsedNanos <= 0 ? 0 : bytesDone * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return bytesDone + "/" + (bytesTotal < 0 ? "?" : String.valueOf(bytesTotal)) + " bytes, "
+                + String.format("%.1f", getBytesPerSecond() / (1 << 20)) + " MB/s";
+    }
+}
@@ -0,0 +1,52 @@
+package uk.co.amyboyd.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Virtual thread executors, which fall back to daemon platform threads when
+ * running on a JVM without virtual threads (before Java 21).
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    /**
+     * An executor that starts a new virtual thread for each task, or a cached
+     * pool of daemon threads if virtual threads are not supported.
+     *
+     * @param name Prefix for the thread names.
+     */
+    static ExecutorService newExecutor(final String name) {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (final NoSuchMethodException ex) {
+            return Executors.newCachedThreadPool(daemonThreadFactory(name));
+        } catch (final ReflectiveOperationException ex) {
+            Logger.getLogger(VirtualThreads.class.getName()).log(Level.WARNING, null, ex);
+            return Executors.newCachedThreadPool(daemonThreadFactory(name));
+        }
+    }
+
+    /**
+     * A factory for daemon platform threads named "name-N".
+     */
+    static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger(1);
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
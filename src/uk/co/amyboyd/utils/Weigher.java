@@ -0,0 +1,15 @@
+package uk.co.amyboyd.utils;
+
+/**
+ * Calculates the weight of a map entry, for maps bounded by total weight
+ * instead of number of entries.
+ *
+ * @see ExpiringMap#setMaximumWeight(long, Weigher)
+ */
+public interface Weigher<K, V> {
+    /**
+     * @return The weight of the entry. Must not be negative, and must not
+     *  change while the entry is in the map.
+     */
+    int weigh(K key, V value);
+}
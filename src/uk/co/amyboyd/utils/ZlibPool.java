@@ -0,0 +1,88 @@
+package uk.co.amyboyd.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pools of {@link Deflater}s, {@link Inflater}s and direct buffers, so that
+ * compressing many small streams does not allocate a native zlib context
+ * and an off-heap buffer for each one. {@link FileUtils} borrows the buffers
+ * for encoding text too.
+ *
+ * <p>Deflaters and inflaters are raw (no zlib header). Everything borrowed
+ * must be released exactly once, and not used afterwards.
+ */
+final class ZlibPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * One pool per level, -1 to 9.
+     */
+    private static final List<ArrayBlockingQueue<Deflater>> DEFLATERS = new ArrayList<ArrayBlockingQueue<Deflater>>();
+
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(MAX_POOLED);
+
+    private static final ArrayBlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED * 2);
+
+    static {
+        for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+            DEFLATERS.add(new ArrayBlockingQueue<Deflater>(MAX_POOLED));
+        }
+    }
+
+    private ZlibPool() {
+    }
+
+    /**
+     * @param level 0 to 9, or -1 for the default.
+     */
+    static Deflater deflater(final int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        final Deflater deflater = DEFLATERS.get(level + 1).poll();
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    /**
+     * @param level The level it was borrowed with.
+     */
+    static void release(final Deflater deflater, final int level) {
+        deflater.reset();
+        if (!DEFLATERS.get(level + 1).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    static Inflater inflater() {
+        final Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    static void release(final Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return A cleared direct buffer of {@link #BUFFER_SIZE} bytes.
+     */
+    static ByteBuffer buffer() {
+        final ByteBuffer buffer = BUFFERS.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    static void release(final ByteBuffer buffer) {
+        buffer.clear();
+        BUFFERS.offer(buffer);
+    }
+}